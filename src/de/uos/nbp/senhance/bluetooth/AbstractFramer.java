@@ -0,0 +1,177 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import de.uos.nbp.senhance.bluetooth.PacketConnection.Packet;
+
+/**
+ * Base for framers: holds the packet being decoded and implements the
+ * optional CRC trailer, which is appended to the payload before framing.
+ *
+ * Subclasses call {@link #beginFrame(Sink)} when a frame starts,
+ * {@link #receiveByte(Sink, int)} for every payload byte and
+ * {@link #endFrame(Sink)} or {@link #dropFrame(Sink, int)} when it ends.
+ * The CRC register is updated as the bytes arrive, so checking a frame
+ * needs no second pass over it.
+ *
+ * A frame may not grow beyond the capacity limit of the packet the sink
+ * hands out for it, which is the byte budget of the connection: a frame
+ * whose end was lost is dropped once it reaches the budget instead of
+ * growing until the next end marker, so a noisy link cannot make the
+ * framer use more memory.
+ */
+public abstract class AbstractFramer implements Framer {
+	/** No integrity check (default) */
+	public static final int CRC_NONE = 0;
+	/** 2-byte CRC-16/CCITT-FALSE trailer */
+	public static final int CRC_16 = 1;
+	/** 4-byte CRC-32 trailer */
+	public static final int CRC_32 = 2;
+
+	/** NB: only changed while no frame is being decoded */
+	protected int mCrcMode = CRC_NONE;
+	/** running CRC register of the frame being decoded */
+	private int mCrc;
+	/** packet of the frame being decoded, null between frames */
+	protected Packet mPacket;
+	/** the most bytes, including trailer, the current frame may take up */
+	private int mFrameLimit;
+
+	/**
+	 * Selects the integrity check appended to encoded frames and expected
+	 * on decoded ones. Both ends must use the same mode. Must be set before
+	 * the framer is given to a connection, as it changes
+	 * {@link #getTrailerSize()}.
+	 * @param crcMode {@link #CRC_NONE}, {@link #CRC_16} or {@link #CRC_32}
+	 */
+	public void setCrcMode(int crcMode) {
+		if ((crcMode != CRC_NONE) && (crcMode != CRC_16) && (crcMode != CRC_32))
+			throw new IllegalArgumentException("Unknown CRC mode: "+crcMode);
+		mCrcMode = crcMode;
+	}
+
+	public int getCrcMode() {
+		return mCrcMode;
+	}
+
+	@Override
+	public int getTrailerSize() {
+		switch (mCrcMode) {
+		case CRC_16: return Crc.Crc16Size;
+		case CRC_32: return Crc.Crc32Size;
+		default: return 0;
+		}
+	}
+
+	/**
+	 * Obtains a packet for a new frame and starts the CRC register.
+	 */
+	protected void beginFrame(Sink sink) {
+		if (mPacket != null)
+			mPacket.release();
+		mPacket = sink.obtainPacket();
+		mFrameLimit = mPacket.getCapacityLimit();
+		mCrc = (mCrcMode == CRC_32) ? Crc.Crc32Init : Crc.Crc16Init;
+	}
+
+	/**
+	 * Adds a decoded byte to the current packet and the CRC register.
+	 * @return false if the frame exceeds its budget; it has then been dropped
+	 */
+	protected boolean receiveByte(Sink sink, int bb) {
+		final Packet pkt = mPacket;
+		if (pkt.mPosition >= mFrameLimit) {
+			dropFrame(sink, DROP_OVERSIZE);
+			return false;
+		}
+		pkt.appendByte(bb);
+		if (mCrcMode == CRC_16)
+			mCrc = Crc.update16(mCrc, bb);
+		else if (mCrcMode == CRC_32)
+			mCrc = Crc.update32(mCrc, bb);
+		return true;
+	}
+
+	/**
+	 * @return the most bytes, including trailer, the current frame may take up
+	 */
+	protected int getFrameLimit() {
+		return mFrameLimit;
+	}
+
+	/**
+	 * Adds a block of decoded bytes to the current packet and the CRC register.
+	 * The caller must make sure they fit into {@link #getFrameLimit()}.
+	 * @throws ArrayIndexOutOfBoundsException if the packet is full
+	 */
+	protected void receiveBytes(byte[] data, int offset, int length) {
+		final Packet pkt = mPacket;
+		pkt.ensureCapacity(pkt.mPosition + length);
+		System.arraycopy(data, offset, pkt.mData, pkt.mPosition, length);
+		pkt.mPosition += length;
+		pkt.markWritten(pkt.mPosition);
+		if (mCrcMode == CRC_16)
+			mCrc = Crc.update16(mCrc, data, offset, length);
+		else if (mCrcMode == CRC_32)
+			mCrc = Crc.update32(mCrc, data, offset, length);
+	}
+
+	/**
+	 * Checks the CRC of the completed frame, strips the trailer and hands
+	 * the packet to the sink, or drops it.
+	 */
+	protected void endFrame(Sink sink) {
+		final Packet pkt = mPacket;
+		if (mCrcMode != CRC_NONE) {
+			final int trailer = getTrailerSize();
+			final int residue = (mCrcMode == CRC_32) ? Crc.Crc32Residue : Crc.Crc16Residue;
+			if ((pkt.mLength < trailer) || (mCrc != residue)) {
+				dropFrame(sink, DROP_CRC);
+				return;
+			}
+			pkt.mLength -= trailer;
+		}
+		mPacket = null;
+		pkt.mPosition = 0;
+		sink.frameReceived(pkt);
+	}
+
+	/**
+	 * Releases the packet of the current frame, if any, and reports the drop.
+	 */
+	protected void dropFrame(Sink sink, int reason) {
+		if (mPacket != null) {
+			mPacket.release();
+			mPacket = null;
+		}
+		sink.frameDropped(reason);
+	}
+
+	/**
+	 * @return the CRC to append to the packet, see {@link #trailerByte(int, int)}
+	 */
+	protected int computeCrc(Packet pkt) {
+		switch (mCrcMode) {
+		case CRC_16: return Crc.crc16(pkt.mData, 0, pkt.getLength());
+		case CRC_32: return Crc.crc32(pkt.mData, 0, pkt.getLength());
+		default: return 0;
+		}
+	}
+
+	/**
+	 * @param crc from {@link #computeCrc(Packet)}
+	 * @param index 0 to {@link #getTrailerSize()}-1
+	 * @return the trailer byte at index, in the order they are sent
+	 */
+	protected int trailerByte(int crc, int index) {
+		if (mCrcMode == CRC_16)
+			return (crc >>> (8 - 8*index)) & 0xFF;
+		return (crc >>> (8*index)) & 0xFF;
+	}
+
+	@Override
+	public void reset() {
+		if (mPacket != null) {
+			mPacket.release();
+			mPacket = null;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package de.uos.nbp.senhance.bluetooth;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.UUID;
 
@@ -15,16 +16,45 @@ import android.os.Message;
 import android.os.SystemClock;
 import android.util.Log;
 
-public class BluetoothPacketConnection extends Handler implements PacketConnection {
+public class BluetoothPacketConnection extends Handler implements PacketConnection, BluetoothService.ChunkDecoder {
 
 	protected static final String TAG = "heartFelt";
 	protected static final boolean D = false;
 	protected final int mMaxPacketSize;
 	protected PacketConnectionHandler mConnHandler;
-	protected State mState;
+	/** NB: written by the ConnectedThread when decoding on the reader thread */
+	protected volatile State mState;
 	protected Packet mPacket;
+	/** Source of the packets that are filled and delivered to mConnHandler */
+	protected final PacketPool mPacketPool;
 	protected String mAddress;
 	protected BluetoothService mBluetoothService;
+	
+	/** time in milliseconds since Unix epoch at which the byte being processed was received */
+	protected long mReceiveTime;
+	/** System elapsedRealtime at which the byte being processed was received */
+	protected long mReceiveMillis;
+	
+	/** If true, readByte runs on the ConnectedThread and only whole packets are posted */
+	protected volatile boolean mDecodeOnReaderThread = false;
+	
+	/** If set, completed packets are queued here for {@link #readPacket()} instead of being passed to mConnHandler */
+	protected volatile SpscRingBuffer<Packet> mReceiveQueue;
+	/** The reader thread that decodes, and so is the one producer of mReceiveQueue; guarded by this */
+	private Thread mDecoderThread;
+	
+	/** Disables batch delivery, see {@link #setBatchDelivery(long)} */
+	public static final long BATCH_OFF = -1;
+	/** -1 for no batching, 0 to batch per chunk, otherwise the latency window in ms */
+	protected volatile long mBatchWindow = BATCH_OFF;
+	/** packets not yet delivered to the PacketBatchHandler, reused for every batch */
+	protected final ArrayList<Packet> mBatch = new ArrayList<Packet>();
+	/** SystemClock.uptimeMillis when the first packet of the current batch arrived */
+	protected long mBatchStart;
+	/** packets decoded from the current chunk on the reader thread */
+	private int mPacketsInChunk;
+	/** set when decoding on the reader thread, which resets the packet before its next chunk */
+	protected volatile boolean mResetRequested = false;
 
 	/**
 	 * Creates a new bluetooth connection
@@ -39,6 +69,8 @@ public class BluetoothPacketConnection extends Handler implements PacketConnecti
 		if (D) Log.v(TAG, "BluetoothConnection()");
 		mConnHandler = connHandler;
 		mMaxPacketSize = maxPacketSize;
+		mPacketPool = new PacketPool(maxPacketSize);
+		mPacket = mPacketPool.obtain();
 		mAddress = address;
 		mBluetoothService = new BluetoothService(this); /* TODO: rmuil: this looks bad to me, like could be a memory leak. */
 		mState = State.Disconnected;
@@ -99,6 +131,17 @@ public class BluetoothPacketConnection extends Handler implements PacketConnecti
 		mBluetoothService.connect(mAddress, uuid);
 	}
 
+	/**
+	 * Connects over the given transport rather than to the Bluetooth
+	 * address, e.g. to a TCP peer for testing.
+	 * @param transport
+	 * @see BluetoothService#connect(Transport)
+	 */
+	public void connect(Transport transport) {
+		if (D) Log.v(TAG, "BluetoothConnection.connect(transport)");
+		mBluetoothService.connect(transport);
+	}
+
 	protected void changeState(State newState) {
 		if (D) Log.v(TAG, "BluetoothConnection|"+mState+"->"+newState);
 		mState = newState;
@@ -112,6 +155,125 @@ public class BluetoothPacketConnection extends Handler implements PacketConnecti
 		mBluetoothService.setConnectedThreadPriority(DesiredDeviceThreadPriority);
 	}
 
+	/**
+	 * @see BluetoothService#setReceiveMode(int)
+	 */
+	public void setReceiveMode(int receiveMode) {
+		mBluetoothService.setReceiveMode(receiveMode);
+	}
+
+	/**
+	 * @see BluetoothService#setWriteMode(int)
+	 */
+	public void setWriteMode(int writeMode) {
+		mBluetoothService.setWriteMode(writeMode);
+	}
+
+	/**
+	 * @see BluetoothService#setWriteCoalescing(int, long)
+	 */
+	public void setWriteCoalescing(int maxWriteSize, long maxDelayMillis) {
+		mBluetoothService.setWriteCoalescing(maxWriteSize, maxDelayMillis);
+	}
+
+	/**
+	 * Moves decoding of received data off the Handler's thread: the
+	 * connection's readByte() state machine is then run on the thread
+	 * that reads the socket and only completed packets are posted to
+	 * this Handler, to be passed on to
+	 * {@link PacketConnectionHandler#packetReceived(Packet)} as before.
+	 * 
+	 * This requires the default {@link BluetoothService#RECEIVE_CHUNKED} mode.
+	 * @param decodeOnReaderThread
+	 */
+	public void setDecodeOnReaderThread(boolean decodeOnReaderThread) {
+		mDecodeOnReaderThread = decodeOnReaderThread;
+		mBluetoothService.setChunkDecoder(decodeOnReaderThread ? this : null);
+	}
+
+	public boolean isDecodeOnReaderThread() {
+		return mDecodeOnReaderThread;
+	}
+
+	/**
+	 * @see BluetoothService#setCaptureRecorder(CaptureRecorder)
+	 */
+	public void setCaptureRecorder(CaptureRecorder recorder) {
+		mBluetoothService.setCaptureRecorder(recorder);
+	}
+
+	/**
+	 * Hands completed packets to the application through the given ring
+	 * buffer rather than through the Handler: packets are decoded on the
+	 * thread reading the socket (see {@link #setDecodeOnReaderThread(boolean)})
+	 * and queued, and one application thread takes them with
+	 * {@link #readPacket()} or {@link #pollPacket()}.
+	 * {@link PacketConnectionHandler#packetReceived(Packet)} is not called
+	 * for queued packets; the other callbacks are unaffected.
+	 * 
+	 * When the queue is full, the reader waits according to the queue's
+	 * wait strategy, which in turn stalls the socket.
+	 * @param receiveQueue the queue, or null to deliver packets to the handler again
+	 */
+	public void setReceiveQueue(SpscRingBuffer<Packet> receiveQueue) {
+		mReceiveQueue = receiveQueue;
+		setDecodeOnReaderThread(receiveQueue != null);
+	}
+
+	/**
+	 * Switches delivery of received packets to
+	 * {@link PacketBatchHandler#packetsReceived(java.util.List)}, so the
+	 * handler is called once for many packets rather than once per packet.
+	 * 
+	 * With a window of 0 a batch holds the packets decoded from one read
+	 * of the socket. With a positive window, packets are collected until
+	 * the first of them is that many milliseconds old.
+	 * Any batch still pending is delivered before connectionLost() or
+	 * connectionClosed() is called.
+	 * 
+	 * Must be called on the thread of this Handler's Looper.
+	 * @param windowMillis the latency window, 0 for per-chunk batches or
+	 *   {@link #BATCH_OFF} to go back to single packets
+	 * @throws IllegalStateException if the handler is not a PacketBatchHandler
+	 */
+	public void setBatchDelivery(long windowMillis) {
+		if ((windowMillis != BATCH_OFF) && !(mConnHandler instanceof PacketBatchHandler))
+			throw new IllegalStateException("batch delivery requires a PacketBatchHandler");
+		if (windowMillis < BATCH_OFF)
+			throw new IllegalArgumentException("negative batch window: "+windowMillis);
+		flushBatch();
+		mBatchWindow = windowMillis;
+	}
+
+	public long getBatchDelivery() {
+		return mBatchWindow;
+	}
+
+	/**
+	 * Blocks until a complete packet has been received. Only available
+	 * with a receive queue, and only one thread may call it.
+	 * @return the next packet
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if no receive queue is set
+	 */
+	public Packet readPacket() throws InterruptedException {
+		SpscRingBuffer<Packet> queue = mReceiveQueue;
+		if (queue == null)
+			throw new IllegalStateException("readPacket() requires a receive queue");
+		return queue.take();
+	}
+
+	/**
+	 * Like {@link #readPacket()}, but returns null straight away if no
+	 * packet has been received.
+	 */
+	public Packet pollPacket() {
+		SpscRingBuffer<Packet> queue = mReceiveQueue;
+		if (queue == null)
+			throw new IllegalStateException("pollPacket() requires a receive queue");
+		return queue.poll();
+	}
+
 	public void flush() {
 		mBluetoothService.flush();
 	}
@@ -157,11 +319,23 @@ public class BluetoothPacketConnection extends Handler implements PacketConnecti
 	@Override
 	public void discard() {
 		if (isConnected()) {
-			mPacket = new Packet(mMaxPacketSize);
+			requestReset();
 			changeState(State.Ready);
 		}
 	}
 
+	/**
+	 * Resets the packet being received on the thread that decodes: right
+	 * away on the Handler's thread, or before the next chunk when decoding
+	 * on the reader thread.
+	 */
+	protected void requestReset() {
+		if (mDecodeOnReaderThread)
+			mResetRequested = true;
+		else
+			resetPacket();
+	}
+
 	@Override
 	public void handleMessage(Message msg) {
 	        
@@ -170,6 +344,7 @@ public class BluetoothPacketConnection extends Handler implements PacketConnecti
 				handleConnectFailed(msg);
 				break;
 			case BluetoothService.CONNECTION_LOST:
+				flushBatch();
 				mConnHandler.connectionLost(msg.getData().getString(BluetoothService.MESSAGE));
 				changeState(State.Disconnected);
 				break;
@@ -178,6 +353,7 @@ public class BluetoothPacketConnection extends Handler implements PacketConnecti
 				changeState(State.Disconnected);
 				break;
 			case BluetoothService.CONNECTION_CLOSED:
+				flushBatch();
 				mConnHandler.connectionClosed();
 				changeState(State.Disconnected);
 				break;
@@ -195,8 +371,26 @@ public class BluetoothPacketConnection extends Handler implements PacketConnecti
 					break;
 				}
 				break;
+			case BluetoothService.MESSAGE_READ_CHUNK:
+				ReceiveChunk chunk = (ReceiveChunk) msg.obj;
+				readChunk(chunk);
+				mBluetoothService.recycleChunk(chunk);
+				chunkDecoded();
+				break;
+			case BluetoothService.MESSAGE_PACKET:
+				dispatchPacket((Packet) msg.obj);
+				break;
+			case BluetoothService.MESSAGE_CHUNK_DECODED:
+				chunkDecoded();
+				break;
+			case BluetoothService.MESSAGE_FLUSH_BATCH:
+				flushBatch();
+				break;
 			case BluetoothService.MESSAGE_READ:
+				mReceiveTime = System.currentTimeMillis();
+				mReceiveMillis = SystemClock.elapsedRealtime();
 	            readByte(msg.arg1);
+	            chunkDecoded();
 			}
 		}
 
@@ -207,23 +401,163 @@ public class BluetoothPacketConnection extends Handler implements PacketConnecti
 		mConnHandler.connectFailed(message);
 	}
 
+	/**
+	 * Feeds every byte of the chunk through {@link #readByte(int)}. All
+	 * bytes of a chunk share the chunk's receive timestamp.
+	 * @param chunk
+	 */
+	protected void readChunk (ReceiveChunk chunk) {
+		mReceiveTime = chunk.mReceiveTime;
+		mReceiveMillis = chunk.mReceiveMillis;
+		final byte[] data = chunk.mData;
+		final int end = chunk.mOffset + chunk.mLength;
+		for (int ii = chunk.mOffset; ii < end; ii++) {
+			readByte(data[ii] & 0xFF);
+		}
+	}
+
+	/**
+	 * Called on the ConnectedThread when a connection starts. Stops and
+	 * waits for the reader of the previous connection first, which may
+	 * still be decoding its last chunk, so that only one thread ever
+	 * decodes and puts packets in the receive queue.
+	 */
+	@Override
+	public void decoderStarted() {
+		final Thread current = Thread.currentThread();
+		final Thread previous;
+		synchronized (this) {
+			previous = mDecoderThread;
+			mDecoderThread = current;
+		}
+		if ((previous != null) && (previous != current)) {
+			/* its transport is closed; this ends a put() waiting on a full queue */
+			previous.interrupt();
+			boolean interrupted = false;
+			while (previous.isAlive()) {
+				try {
+					previous.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				current.interrupt();
+		}
+		mResetRequested = false;
+		resetPacket();
+	}
+
+	/**
+	 * Called on the ConnectedThread when decoding on the reader thread.
+	 */
+	@Override
+	public void decodeChunk(ReceiveChunk chunk) {
+		if (mResetRequested) {
+			mResetRequested = false;
+			resetPacket();
+		}
+		mPacketsInChunk = 0;
+		readChunk(chunk);
+		if ((mPacketsInChunk > 0) && (mBatchWindow != BATCH_OFF))
+			sendEmptyMessage(BluetoothService.MESSAGE_CHUNK_DECODED);
+	}
+
+	/**
+	 * Passes a completed packet to the PacketConnectionHandler, either
+	 * directly or, when decoding on the reader thread, by posting it
+	 * to this Handler. With a receive queue it is queued for readPacket()
+	 * instead. The packet must not be modified afterwards.
+	 * @param pkt
+	 */
+	protected void deliverPacket (Packet pkt) {
+		SpscRingBuffer<Packet> queue = mReceiveQueue;
+		if (queue != null) {
+			try {
+				queue.put(pkt);
+			} catch (InterruptedException e) {
+				Log.w(TAG, "BluetoothConnection|interrupted while queueing packet, dropped");
+				Thread.currentThread().interrupt();
+			}
+		} else if (mDecodeOnReaderThread) {
+			mPacketsInChunk++;
+			obtainMessage(BluetoothService.MESSAGE_PACKET, pkt).sendToTarget();
+		} else {
+			dispatchPacket(pkt);
+		}
+	}
+
+	/**
+	 * Passes a packet to the handler, or adds it to the current batch.
+	 * Only called on the Handler's thread.
+	 * @param pkt
+	 */
+	private void dispatchPacket (Packet pkt) {
+		if (mBatchWindow == BATCH_OFF) {
+			mConnHandler.packetReceived(pkt);
+			return;
+		}
+		mBatch.add(pkt);
+		if ((mBatch.size() == 1) && (mBatchWindow > 0)) {
+			mBatchStart = SystemClock.uptimeMillis();
+			sendEmptyMessageDelayed(BluetoothService.MESSAGE_FLUSH_BATCH, mBatchWindow);
+		}
+	}
+
+	/**
+	 * Called on the Handler's thread once all packets of a chunk have been
+	 * dispatched; delivers the batch if it is due.
+	 */
+	private void chunkDecoded () {
+		if (mBatch.isEmpty())
+			return;
+		if ((mBatchWindow == 0) ||
+			(SystemClock.uptimeMillis() - mBatchStart >= mBatchWindow)) {
+			flushBatch();
+		}
+	}
+
+	/**
+	 * Delivers any packets collected in the current batch.
+	 */
+	protected void flushBatch () {
+		removeMessages(BluetoothService.MESSAGE_FLUSH_BATCH);
+		if (mBatch.isEmpty())
+			return;
+		((PacketBatchHandler) mConnHandler).packetsReceived(mBatch);
+		mBatch.clear();
+	}
+
 	/**
 	 * Puts the byte in a packet and notifies the handler. Here 1 Byte = 1 Packet.
-	 * TODO: rmuil: the timestamps and the name of this function have lost their
-	 *   meaning in the whole refactoring. the timestamps are essentially useless. 
+	 * The timestamps are those at which the byte was read from the socket.
 	 */
 	protected void readByte (int nextByte){
-		mPacket.mStartTime = System.currentTimeMillis();
-		mPacket.packetStartMillis = SystemClock.elapsedRealtime();
+		mPacket.mStartTime = mReceiveTime;
+		mPacket.packetStartMillis = mReceiveMillis;
 		mPacket.appendByte(nextByte);
-		mConnHandler.packetReceived(mPacket);
-		mPacket.mEndTime = System.currentTimeMillis();
-		mPacket.packetEndMillis = SystemClock.elapsedRealtime();
-		mPacket = new Packet(mMaxPacketSize);
+		mPacket.mEndTime = mReceiveTime;
+		mPacket.packetEndMillis = mReceiveMillis;
+		deliverPacket(mPacket);
+		mPacket = mPacketPool.obtain();
 	}
 	
+	/**
+	 * Empties the packet currently being received, or obtains one if
+	 * there is none yet.
+	 */
+	protected void resetPacket() {
+		if (mPacket == null) {
+			mPacket = mPacketPool.obtain();
+		} else {
+			mPacket.reset();
+		}
+	}
+
 	private void handleConnectedMessage(Message msg) {
-		mPacket = new Packet(mMaxPacketSize);
+		/* the reader thread resets its own state in decoderStarted() */
+		if (!mDecodeOnReaderThread)
+			resetPacket();
 		changeState(State.Ready);
 		mConnHandler.connected();
 	}
@@ -232,10 +566,20 @@ public class BluetoothPacketConnection extends Handler implements PacketConnecti
 	public void send(Packet pkt) throws IOException {
 		if (D) Log.v(TAG, "BluetoothPacketConnection.send()");
 		if ((mState!=State.Disconnected) && (mState != State.Dead)) {
-			mBluetoothService.write(pkt.getData());
+			mBluetoothService.write(pkt.mData, 0, pkt.getLength());
 		} else {
 			throw new IOException("BluetoothConnection is not active at the moment!");
 		}
 	}
 
+	@Override
+	public void sendAsync(Packet pkt, SendCallback callback) {
+		if (D) Log.v(TAG, "BluetoothPacketConnection.sendAsync()");
+		if ((mState!=State.Disconnected) && (mState != State.Dead)) {
+			mBluetoothService.write(pkt.mData, 0, pkt.getLength(), pkt, callback);
+		} else {
+			callback.sendFailed(pkt, new IOException("BluetoothConnection is not active at the moment!"));
+		}
+	}
+
 }
\ No newline at end of file
@@ -1,10 +1,10 @@
 package de.uos.nbp.senhance.bluetooth;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.reflect.Method;
+import java.util.LinkedList;
 import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -13,6 +13,8 @@ import android.bluetooth.BluetoothSocket;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import de.uos.nbp.senhance.bluetooth.PacketConnection.Packet;
 
 public class BluetoothService {
 
@@ -26,6 +28,10 @@ public class BluetoothService {
 	public static final int CONNECT_ATTEMPT_FAILED = 6;
 	public static final int CONNECTION_LOST = 7;
 	public static final int CONNECTION_CLOSED = 8;
+	public static final int MESSAGE_READ_CHUNK = 9;
+	public static final int MESSAGE_PACKET = 10;
+	public static final int MESSAGE_CHUNK_DECODED = 11;
+	public static final int MESSAGE_FLUSH_BATCH = 12;
 
 	// Constants that indicate the current connection state
 	public static final int STATE_NONE = 0; // we're doing nothing
@@ -33,6 +39,20 @@ public class BluetoothService {
 	public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
 	public static final int STATE_CONNECTED = 3; // now connected to a remote device
 
+	// Constants that select how the ConnectedThread reads from the socket
+	public static final int RECEIVE_CHUNKED = 0; // bulk reads, one MESSAGE_READ_CHUNK per read
+	public static final int RECEIVE_BYTEWISE = 1; // one MESSAGE_READ per byte (legacy)
+
+	// Constants that select how data is written to the socket
+	public static final int WRITE_SYNC = 0; // on the calling thread
+	public static final int WRITE_ASYNC = 1; // queued and written by a WriterThread
+
+	/** Default limit on the bytes coalesced into a single socket write. */
+	public static final int DefMaxWriteSize = 1024;
+
+	/** Maximum number of idle chunks kept for reuse. */
+	private static final int MaxPooledChunks = 16;
+
 	// UUID for connection
 	private static final UUID MY_UUID = UUID
 			.fromString("00001101-0000-1000-8000-00805F9B34FB");
@@ -49,7 +69,8 @@ public class BluetoothService {
 	private int mPort = 1;
 
 	public Method m;
-	private BluetoothDevice mDevice;
+	/** the transport of the current or last connection */
+	private Transport mTransport;
 
 	/**
 	 * This is an important variable - Device and Monitoring threads will exit
@@ -66,6 +87,54 @@ public class BluetoothService {
 	private long mConnectionAttemptInterval = 1000;
 	
 	int contiguousConnectionFailures = 0;
+	
+	/** How the ConnectedThread reads, either RECEIVE_CHUNKED or RECEIVE_BYTEWISE */
+	private int mReceiveMode = RECEIVE_CHUNKED;
+	
+	/** Size of the buffer of each ReceiveChunk, i.e. the maximum bytes per read */
+	private int mReceiveChunkSize = ReceiveChunk.DefChunkSize;
+	
+	/** Chunks that have been handed back by the Handler and can be read into again */
+	private final ReceiveChunk[] mChunkPool = new ReceiveChunk[MaxPooledChunks];
+	private int mPooledChunks = 0;
+	
+	/** How data is written, either WRITE_SYNC or WRITE_ASYNC */
+	private int mWriteMode = WRITE_SYNC;
+	
+	/** WRITE_ASYNC: most bytes passed to a single socket write */
+	private int mMaxWriteSize = DefMaxWriteSize;
+	
+	/** WRITE_ASYNC: msecs the writer may wait for more data before writing less than mMaxWriteSize */
+	private long mMaxCoalescingDelay = 0;
+	
+	/** If set, chunks are decoded on the ConnectedThread rather than posted to the Handler */
+	private volatile ChunkDecoder mChunkDecoder;
+	
+	/** Creates the threads the connect, read, write and accept loops run on, null for plain threads */
+	private volatile ThreadFactory mThreadFactory;
+	
+	/** If set, records the bytes read from and written to the connection */
+	private volatile CaptureRecorder mCaptureRecorder;
+	
+	/**
+	 * Processes received chunks directly on the thread that reads the
+	 * socket, see {@link BluetoothService#setChunkDecoder(ChunkDecoder)}.
+	 */
+	public interface ChunkDecoder {
+		/**
+		 * Called on the ConnectedThread when a connection starts, before
+		 * the first chunk is read, so the decoder can reset its state on
+		 * the thread that uses it.
+		 */
+		void decoderStarted();
+
+		/**
+		 * Called on the ConnectedThread for every chunk read. The chunk is
+		 * recycled as soon as this returns.
+		 * @param chunk
+		 */
+		void decodeChunk(ReceiveChunk chunk);
+	}
 
 	public BluetoothService(Handler handler) {
 		mAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -109,19 +178,30 @@ public class BluetoothService {
 	}
 
 	public synchronized void connect(String deviceAddress, int port) {
-		mDevice = mAdapter.getRemoteDevice(deviceAddress);
 		mPort = port;
-		connect(mDevice);
+		connect(mAdapter.getRemoteDevice(deviceAddress));
 	}
 
 	public synchronized void connect(String deviceAddress, UUID uuid){
-		mDevice = mAdapter.getRemoteDevice(deviceAddress);
 		mUUID = uuid;
-		connect(mDevice);
+		connect(mAdapter.getRemoteDevice(deviceAddress));
 	}
 	
-	// This is making the Bluetooth Service connect to another server
+	/**
+	 * Connects to the device over RFCOMM, to the service record of the
+	 * last UUID given if any, otherwise to the last channel given.
+	 * @param device
+	 */
 	public synchronized void connect(BluetoothDevice device) {
+		connect((mUUID != null) ? new RfcommTransport(device, mUUID) : new RfcommTransport(device, mPort));
+	}
+
+	/**
+	 * Connects over the given transport instead of RFCOMM, e.g. a TCP
+	 * socket. Reconnection attempts call {@link Transport#connect()} again.
+	 * @param transport
+	 */
+	public synchronized void connect(Transport transport) {
 		if (mState == STATE_CONNECTING) {
 			// Cancel any other connections
 			if (mConnectThread != null) {
@@ -135,7 +215,8 @@ public class BluetoothService {
 			mConnectedThread = null;
 		}
 
-		mConnectThread = new ConnectThread(device);
+		mTransport = transport;
+		mConnectThread = new ConnectThread(transport);
 		mConnectThread.start();
 		setState(STATE_CONNECTING);
 
@@ -145,6 +226,14 @@ public class BluetoothService {
 	// UI.
 	public synchronized void connected(BluetoothSocket socket,
 			BluetoothDevice device) {
+		connected(new RfcommTransport(socket));
+	}
+
+	/**
+	 * Starts reading from a transport that has been connected.
+	 * @param transport
+	 */
+	public synchronized void connected(Transport transport) {
 		// Cancel any concurrent threads
 		if (mConnectThread != null) {
 			mConnectThread.cancel();
@@ -160,10 +249,8 @@ public class BluetoothService {
 			mSecureAcceptThread = null;
 		}
 
-		mConnectedThread = new ConnectedThread(socket);
-		if (mDesiredDeviceThreadPriority!=-1){
-			mConnectedThread.setPriority(mDesiredDeviceThreadPriority);
-		}
+		mTransport = transport;
+		mConnectedThread = new ConnectedThread(transport);
 		mConnectedThread.start();
 
 		setState(STATE_CONNECTED);
@@ -191,7 +278,20 @@ public class BluetoothService {
 		mHandler.obtainMessage(CONNECTION_CLOSED).sendToTarget();
 	}
 
-	public void write(byte[] out) {
+	public void write(byte[] out) throws IOException {
+		write(out, 0, out.length);
+	}
+
+	/**
+	 * Writes the given range of the buffer to the socket, or, in
+	 * WRITE_ASYNC mode, copies it to the send queue. Either way the
+	 * caller may reuse the buffer as soon as this returns.
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @throws IOException if not connected or the write fails
+	 */
+	public void write(byte[] buffer, int offset, int length) throws IOException {
 		// Create temporary object
 		ConnectedThread r;
 		// Synchronize a copy of the ConnectedThread
@@ -199,11 +299,39 @@ public class BluetoothService {
 		//  get a reference to the mConnectedThread and interleave calls on it. 
 		synchronized (this) {
 			if (mState != STATE_CONNECTED)
-				return;
+				throw new IOException("BluetoothService is not connected");
 			r = mConnectedThread;
 		}
 		// Perform the write unsynchronized
-		r.write(out);
+		r.write(buffer, offset, length, null, null);
+	}
+
+	/**
+	 * Like {@link #write(byte[], int, int)}, but reports the outcome to the
+	 * callback rather than throwing. In WRITE_ASYNC mode this returns as soon
+	 * as the data is queued and the callback is called by the writer thread
+	 * once the data is written or the connection is gone.
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @param pkt passed on to the callback
+	 * @param callback
+	 */
+	public void write(byte[] buffer, int offset, int length, Packet pkt, SendCallback callback) {
+		ConnectedThread r;
+		synchronized (this) {
+			r = (mState == STATE_CONNECTED) ? mConnectedThread : null;
+		}
+		if (r == null) {
+			callback.sendFailed(pkt, new IOException("BluetoothService is not connected"));
+			return;
+		}
+		try {
+			r.write(buffer, offset, length, pkt, callback);
+		} catch (IOException e) {
+			/* only thrown if the callback has not been told */
+			callback.sendFailed(pkt, e);
+		}
 	}
 
 	/**
@@ -243,8 +371,16 @@ public class BluetoothService {
 
 	}
 
+	/**
+	 * @return a new, unstarted thread for the given loop, from the thread factory if one is set
+	 */
+	private Thread newThread(Runnable loop) {
+		ThreadFactory factory = mThreadFactory;
+		return (factory != null) ? factory.newThread(loop) : new Thread(loop);
+	}
+
 	// This listens for incoming connections.
-	private class AcceptThread extends Thread {
+	private class AcceptThread implements Runnable {
 		private final BluetoothServerSocket mmServerSocket;
 
 		public AcceptThread() {
@@ -260,6 +396,10 @@ public class BluetoothService {
 			mmServerSocket = tmp;
 		}
 
+		public void start() {
+			newThread(this).start();
+		}
+
 		public void run() {
 			BluetoothSocket socket = null;
 			while (mState != STATE_CONNECTED) {
@@ -278,7 +418,7 @@ public class BluetoothService {
 						case STATE_NONE:
 						case STATE_CONNECTED:
 							try {
-								closeSocket(socket);
+								socket.close();
 							} catch (IOException e) {
 							}
 							break;
@@ -297,39 +437,34 @@ public class BluetoothService {
 		}
 	}
 
-	private class ConnectThread extends Thread {
-		private BluetoothDevice mmDevice;
-		private BluetoothSocket mmSocket;
+	private class ConnectThread implements Runnable {
+		private final Transport mmTransport;
 
-		public ConnectThread(BluetoothDevice device) {
-			mmDevice = device;
+		public ConnectThread(Transport transport) {
+			mmTransport = transport;
 		}
 
-		public void run() {
-			mAdapter.cancelDiscovery();
-
+		public void start() {
+			newThread(this).start();
+		}
 
+		public void run() {
 			String message = "";
 			boolean connected = false;
 			// As long as the connection hasn't been deliberately closed, we should try reconnects
 			// (that is, if the number of max connects isn't reached)
 			while ((!mConnectionDeliberatelyClosed) 
 					&& ((mMaxContiguousConnectionFailures==-1) || (contiguousConnectionFailures < mMaxContiguousConnectionFailures)) ) {
-				//Here every time a socket is created, because for some reason, when first the target is
-				//unavailable and then available socket.connect hangs (at least for 2.3.3) 
-				try {
-					createSocket();
-				} catch (Exception e) {
-					connectFailed(e.getLocalizedMessage());
-					return;
-				}
-
 				try {
 					System.out.println("ConnectThread: Trying to connect...");
-					mmSocket.connect();
+					mmTransport.connect();
 					System.out.println("ConnectThread: connected");
 					connected = true;
 					break;
+				} catch (RuntimeException e) {
+					/* the transport cannot be connected at all, e.g. no RFCOMM socket */
+					connectFailed(e.getLocalizedMessage());
+					return;
 				} catch (Exception e) {
 					message = "BluetoothConnection|socket.connect() failed: "
 							+ e.getLocalizedMessage();
@@ -349,10 +484,10 @@ public class BluetoothService {
 			
 			if (!mConnectionDeliberatelyClosed){
 				if (connected){
-					connected(mmSocket, mmDevice);
+					connected(mmTransport);
 				}else {
 					try {
-						closeSocket(mmSocket);
+						mmTransport.close();
 					} catch (IOException e2) {
 						message += "\n socket.close() failed too: "+ e2.getLocalizedMessage();
 					}
@@ -362,92 +497,150 @@ public class BluetoothService {
 			contiguousConnectionFailures = 0;
 		}
 
-		private void createSocket() throws Exception {
-			if (mUUID!=null){
-				mmSocket = mDevice.createRfcommSocketToServiceRecord(mUUID);
-			}else{
-				Method m = mmDevice.getClass().getMethod("createRfcommSocket",
-					new Class[] { int.class });
-				mmSocket = (BluetoothSocket) m.invoke(mmDevice, mPort);
-			// tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
-			}
-		}
-
 		public void cancel() {
 			try {
-				closeSocket(mmSocket);
+				mmTransport.close();
 			} catch (IOException e) {
 
 			}
 		}
 	}
 
-	private class ConnectedThread extends Thread {
-		private final BluetoothSocket mmSocket;
-		private final InputStream mmInStream;
-		private final OutputStream mmOutStream;
-
-		public ConnectedThread(BluetoothSocket socket) {
-			mmSocket = socket;
-			InputStream tmpIn = null;
-			OutputStream tmpOut = null;
-
-			try {
-				tmpIn = socket.getInputStream();
-				tmpOut = socket.getOutputStream();
-			} catch (IOException e) {
+	private class ConnectedThread implements Runnable {
+		private final Transport mmTransport;
+		/** only in WRITE_ASYNC mode */
+		private final WriterThread mmWriter;
+		/** RECEIVE_BYTEWISE: holds the byte being read */
+		private final byte[] mmSingleByte = new byte[1];
+		/** set once the loss of this connection has been handled, by the reader or the writer */
+		private boolean mmLost = false;
+
+		public ConnectedThread(Transport transport) {
+			mmTransport = transport;
+			mmWriter = (mWriteMode == WRITE_ASYNC) ? new WriterThread(transport, this) : null;
+		}
 
+		public void start() {
+			Thread thread = newThread(this);
+			if (mDesiredDeviceThreadPriority!=-1){
+				thread.setPriority(mDesiredDeviceThreadPriority);
 			}
-
-			mmInStream = tmpIn;
-			mmOutStream = tmpOut;
+			thread.start();
 		}
 
 		public void run() {
+			if (mmWriter != null)
+				mmWriter.start();
+
 			int reading;
 			int packetReceived = 0;
+			final boolean chunked = (mReceiveMode == RECEIVE_CHUNKED);
+			if (chunked) {
+				ChunkDecoder decoder = mChunkDecoder;
+				if (decoder != null)
+					decoder.decoderStarted();
+			}
 
 			while (true) {
 				try {
-					reading = mmInStream.read();
-					packetReceived += 1;
-					mHandler.obtainMessage(MESSAGE_READ, reading,packetReceived).sendToTarget();
-
-				} catch (IOException e) {
-					mConnectedThread = null;
-					if (!mConnectionDeliberatelyClosed){
-						connectionLost(e.getLocalizedMessage());
-						// In case the autoconnect option has been specified, 
-						// directly try to reconnect. 
-						if (contiguousConnectionFailures==-1) {
-							connect(mDevice);
+					if (chunked) {
+						ReceiveChunk chunk = obtainChunk();
+						reading = mmTransport.read(chunk.mData, 0, chunk.mData.length);
+						if (reading < 0) {
+							recycleChunk(chunk);
+							throw new IOException("end of stream reached");
+						}
+						chunk.mOffset = 0;
+						chunk.mLength = reading;
+						chunk.mReceiveTime = System.currentTimeMillis();
+						chunk.mReceiveMillis = SystemClock.elapsedRealtime();
+						CaptureRecorder recorder = mCaptureRecorder;
+						if (recorder != null)
+							recorder.record(CaptureFormat.DIR_IN, chunk.mData, 0, reading);
+						ChunkDecoder decoder = mChunkDecoder;
+						if (decoder != null) {
+							decoder.decodeChunk(chunk);
+							recycleChunk(chunk);
+						} else {
+							mHandler.obtainMessage(MESSAGE_READ_CHUNK, chunk).sendToTarget();
 						}
+					} else {
+						if (mmTransport.read(mmSingleByte, 0, 1) < 0)
+							throw new IOException("end of stream reached");
+						CaptureRecorder recorder = mCaptureRecorder;
+						if (recorder != null)
+							recorder.record(CaptureFormat.DIR_IN, mmSingleByte, 0, 1);
+						reading = mmSingleByte[0] & 0xFF;
+						packetReceived += 1;
+						mHandler.obtainMessage(MESSAGE_READ, reading,packetReceived).sendToTarget();
 					}
+
+				} catch (IOException e) {
+					lost(e.getLocalizedMessage());
 					break;
 				}
 			}
 		}
 
-		public void write(byte[] buffer) {
+		/**
+		 * Tears the connection down when the reader or the writer finds it
+		 * broken, whichever is first: fails the queued sends, closes the
+		 * transport (which also stops a blocked read) and reports the loss.
+		 * @param message
+		 */
+		public void lost(String message) {
+			synchronized (this) {
+				if (mmLost)
+					return;
+				mmLost = true;
+			}
+			if (mmWriter != null)
+				mmWriter.cancel("Connection lost: "+message);
+			synchronized (BluetoothService.this) {
+				if (mConnectedThread == this) {
+					mConnectedThread = null;
+					if (!mConnectionDeliberatelyClosed)
+						setState(STATE_NONE);
+				}
+			}
 			try {
-				Bundle bundle = new Bundle();
-				
-				mmOutStream.write(buffer);
-
-				bundle.putByteArray("value", buffer);
-				// Send received message to UI
-				Message msg = mHandler.obtainMessage(MESSAGE_WRITE, -1, -1,
-						buffer);
-				msg.setData(bundle);
-				msg.sendToTarget();
-			} catch (IOException e) {
-				e.printStackTrace();
+				mmTransport.close();
+			} catch (IOException ignored) {}
+			if (!mConnectionDeliberatelyClosed){
+				connectionLost(message);
+				// In case the autoconnect option has been specified, 
+				// directly try to reconnect. 
+				if (contiguousConnectionFailures==-1) {
+					connect(mmTransport);
+				}
+			}
+		}
+
+		/**
+		 * Writes or queues the data. If a callback is given it is called
+		 * once the data is written, unless an IOException is thrown.
+		 */
+		public void write(byte[] buffer, int offset, int length,
+				Packet pkt, SendCallback callback) throws IOException {
+			CaptureRecorder recorder = mCaptureRecorder;
+			if (mmWriter != null) {
+				mmWriter.enqueue(buffer, offset, length, pkt, callback);
+				if (recorder != null)
+					recorder.record(CaptureFormat.DIR_OUT, buffer, offset, length);
+				return;
 			}
+			mmTransport.write(buffer, offset, length);
+			if (recorder != null)
+				recorder.record(CaptureFormat.DIR_OUT, buffer, offset, length);
+			if (callback != null)
+				callback.sendCompleted(pkt);
 		}
 
 		public void cancel() {
+			if (mmWriter != null)
+				mmWriter.cancel("Connection closed");
 			try {
-				closeSocket(mmSocket);
+				mmTransport.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -455,7 +648,7 @@ public class BluetoothService {
 
 		public void flush() {
 			try {
-				mmOutStream.flush();
+				mmTransport.flush();
 				/* TODO: this sometimes generates null-pointer exception */
 			} catch (Exception ignored) {
 				//nop
@@ -464,8 +657,166 @@ public class BluetoothService {
 
 	}
 
+	/**
+	 * Writes queued data to the socket on its own thread, so that
+	 * callers of write() never block in the socket (unless the queue
+	 * is full). Data queued while a write is in progress, or within
+	 * mMaxCoalescingDelay of the first queued byte, is sent in one
+	 * socket write of up to mMaxWriteSize bytes.
+	 * 
+	 * Callbacks of asynchronous sends are called on this thread once
+	 * the last byte of their data has been written, or when the
+	 * writer is cancelled before that.
+	 */
+	private class WriterThread implements Runnable {
+		private final Transport mmTransport;
+		private final int mmMaxWriteSize = mMaxWriteSize;
+		private final long mmMaxCoalescingDelay = mMaxCoalescingDelay;
+		/** data waiting to be written, filled by enqueue() */
+		private byte[] mmPending;
+		private int mmPendingLength = 0;
+		/** data being written, swapped with mmPending */
+		private byte[] mmWriting;
+		/** uptimeMillis when the oldest pending byte was queued */
+		private long mmFirstQueued;
+		private boolean mmCancelled = false;
+		/** total bytes ever queued and written, to tell when a send is complete */
+		private long mmQueuedBytes = 0;
+		private long mmWrittenBytes = 0;
+		/** sends waiting to be reported, in the order they were queued */
+		private LinkedList<PendingSend> mmPendingSends = new LinkedList<PendingSend>();
+		/** the connection this writes for, torn down if a write fails */
+		private final ConnectedThread mmConnection;
+
+		public WriterThread(Transport transport, ConnectedThread connection) {
+			mmTransport = transport;
+			mmConnection = connection;
+			/* room for a few full writes before callers have to wait */
+			mmPending = new byte[4*mmMaxWriteSize];
+			mmWriting = new byte[mmPending.length];
+		}
+
+		public void start() {
+			newThread(this).start();
+		}
+
+		/**
+		 * Copies the data into the send queue, waiting while the queue is full.
+		 * @throws IOException if the writer has been cancelled or the caller interrupted
+		 */
+		public synchronized void enqueue(byte[] buffer, int offset, int length,
+				Packet pkt, SendCallback callback) throws IOException {
+			while (!mmCancelled && (mmPendingLength > 0)
+					&& (mmPendingLength + length > mmPending.length)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting to queue data");
+				}
+			}
+			if (mmCancelled)
+				throw new IOException("Connection is closed");
+			if (length > mmPending.length) {
+				/* a single write larger than the queue */
+				mmPending = new byte[length];
+			}
+			if (mmPendingLength == 0)
+				mmFirstQueued = SystemClock.uptimeMillis();
+			System.arraycopy(buffer, offset, mmPending, mmPendingLength, length);
+			mmPendingLength += length;
+			mmQueuedBytes += length;
+			if (callback != null)
+				mmPendingSends.add(new PendingSend(mmQueuedBytes, pkt, callback));
+			notifyAll();
+		}
+
+		public void run() {
+			boolean interrupted = false;
+			while (true) {
+				int length;
+				synchronized (this) {
+					try {
+						while (!mmCancelled && (mmPendingLength == 0))
+							wait();
+						/* give further data a chance to join this write */
+						long remaining = mmFirstQueued + mmMaxCoalescingDelay - SystemClock.uptimeMillis();
+						while (!mmCancelled && (mmPendingLength < mmMaxWriteSize) && (remaining > 0)) {
+							wait(remaining);
+							remaining = mmFirstQueued + mmMaxCoalescingDelay - SystemClock.uptimeMillis();
+						}
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+					if (mmCancelled || interrupted)
+						break;
+					byte[] tmp = mmWriting;
+					if (tmp.length < mmPending.length)
+						tmp = new byte[mmPending.length];
+					mmWriting = mmPending;
+					mmPending = tmp;
+					length = mmPendingLength;
+					mmPendingLength = 0;
+					notifyAll();
+				}
+				try {
+					for (int off = 0; off < length; off += mmMaxWriteSize) {
+						int len = Math.min(mmMaxWriteSize, length - off);
+						mmTransport.write(mmWriting, off, len);
+						completeSends(len);
+					}
+				} catch (IOException e) {
+					/* a reader blocked on a half-open link would never notice */
+					cancel("Write failed: "+e.getLocalizedMessage());
+					mmConnection.lost("Write failed: "+e.getLocalizedMessage());
+					break;
+				}
+			}
+			if (interrupted) {
+				/* nothing would write the queued data any more */
+				cancel("Writer interrupted");
+				mmConnection.lost("Writer interrupted");
+			}
+		}
+
+		/**
+		 * Accounts for written bytes and reports the sends that are now complete.
+		 */
+		private void completeSends(int written) {
+			PendingSend done;
+			synchronized (this) {
+				mmWrittenBytes += written;
+			}
+			while (true) {
+				synchronized (this) {
+					if (mmPendingSends.isEmpty() || (mmPendingSends.getFirst().mEnd > mmWrittenBytes))
+						return;
+					done = mmPendingSends.removeFirst();
+				}
+				done.mCallback.sendCompleted(done.mPacket);
+			}
+		}
+
+		/**
+		 * Stops the writer, dropping queued data and failing all pending sends.
+		 */
+		public void cancel(String reason) {
+			LinkedList<PendingSend> failed;
+			synchronized (this) {
+				mmCancelled = true;
+				mmPendingLength = 0;
+				failed = mmPendingSends;
+				mmPendingSends = new LinkedList<PendingSend>();
+				notifyAll();
+			}
+			for (PendingSend send : failed) {
+				send.mCallback.sendFailed(send.mPacket, new IOException(reason));
+			}
+		}
+	}
+
 	public String getDeviceName() {
-		return mDevice.getName();
+		return mTransport.getName();
 	}
 
 	public void flush() {
@@ -474,8 +825,140 @@ public class BluetoothService {
 		}
 	}
 	
-	private void closeSocket(BluetoothSocket socket) throws IOException {
-		socket.close();
+	/**
+	 * Returns an idle chunk to read into, creating a new one only
+	 * if none has been handed back yet.
+	 */
+	private ReceiveChunk obtainChunk() {
+		synchronized (mChunkPool) {
+			while (mPooledChunks > 0) {
+				ReceiveChunk chunk = mChunkPool[--mPooledChunks];
+				mChunkPool[mPooledChunks] = null;
+				/* chunks of an old size are dropped after setReceiveChunkSize() */
+				if (chunk.mData.length == mReceiveChunkSize)
+					return chunk;
+			}
+		}
+		return new ReceiveChunk(mReceiveChunkSize);
+	}
+	
+	/**
+	 * Hands a chunk that was delivered with MESSAGE_READ_CHUNK back
+	 * for reuse. The receiver must not touch the chunk afterwards.
+	 * @param chunk
+	 */
+	public void recycleChunk(ReceiveChunk chunk) {
+		synchronized (mChunkPool) {
+			if (mPooledChunks < mChunkPool.length)
+				mChunkPool[mPooledChunks++] = chunk;
+		}
+	}
+
+	/**
+	 * Selects how incoming data is read and delivered to the Handler. Takes
+	 * effect with the next connection.
+	 * @param receiveMode either RECEIVE_CHUNKED (default), which delivers
+	 *  each read as a {@link ReceiveChunk} in a MESSAGE_READ_CHUNK, or
+	 *  RECEIVE_BYTEWISE, which delivers every byte in its own MESSAGE_READ.
+	 */
+	public void setReceiveMode(int receiveMode) {
+		if ((receiveMode != RECEIVE_CHUNKED) && (receiveMode != RECEIVE_BYTEWISE))
+			throw new IllegalArgumentException("unknown receive mode: "+receiveMode);
+		mReceiveMode = receiveMode;
+	}
+
+	public int getReceiveMode() {
+		return mReceiveMode;
+	}
+
+	/**
+	 * Sets the maximum number of bytes read in one go in RECEIVE_CHUNKED mode.
+	 * @param receiveChunkSize
+	 */
+	public void setReceiveChunkSize(int receiveChunkSize) {
+		if (receiveChunkSize < 1)
+			throw new IllegalArgumentException("chunk size must be positive");
+		mReceiveChunkSize = receiveChunkSize;
+	}
+
+	public int getReceiveChunkSize() {
+		return mReceiveChunkSize;
+	}
+
+	/**
+	 * Selects how data passed to write() reaches the socket. Takes effect
+	 * with the next connection.
+	 * @param writeMode either WRITE_SYNC (default), which writes on the
+	 *  calling thread, or WRITE_ASYNC, which queues the data for a
+	 *  dedicated writer thread that coalesces it into fewer socket writes.
+	 * @see #setWriteCoalescing(int, long)
+	 */
+	public void setWriteMode(int writeMode) {
+		if ((writeMode != WRITE_SYNC) && (writeMode != WRITE_ASYNC))
+			throw new IllegalArgumentException("unknown write mode: "+writeMode);
+		mWriteMode = writeMode;
+	}
+
+	public int getWriteMode() {
+		return mWriteMode;
+	}
+
+	/**
+	 * Sets how queued data is coalesced in WRITE_ASYNC mode. Takes effect
+	 * with the next connection.
+	 * @param maxWriteSize most bytes passed to a single socket write
+	 * @param maxDelayMillis how long the writer may hold back data waiting for more
+	 *  (0 only coalesces what is queued while the previous write is in progress)
+	 */
+	public void setWriteCoalescing(int maxWriteSize, long maxDelayMillis) {
+		if ((maxWriteSize < 1) || (maxDelayMillis < 0))
+			throw new IllegalArgumentException("invalid write coalescing parameters");
+		mMaxWriteSize = maxWriteSize;
+		mMaxCoalescingDelay = maxDelayMillis;
+	}
+
+	/**
+	 * Installs a decoder that is handed every chunk on the ConnectedThread
+	 * itself, so no MESSAGE_READ_CHUNK is posted. Only used in
+	 * RECEIVE_CHUNKED mode.
+	 * @param decoder the decoder, or null to post chunks to the Handler again
+	 */
+	public void setChunkDecoder(ChunkDecoder decoder) {
+		mChunkDecoder = decoder;
+	}
+
+	/**
+	 * Sets the factory that creates the threads the connect, read, write
+	 * and accept loops run on, e.g. to name them, to make them daemons or
+	 * to run them on virtual threads where the platform has them
+	 * (Thread.ofVirtual().factory()). Takes effect for threads started
+	 * from now on. The priority set with
+	 * {@link #setConnectedThreadPriority(int)} is applied to the thread
+	 * reading the socket.
+	 * @param threadFactory the factory, or null for plain threads
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		mThreadFactory = threadFactory;
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return mThreadFactory;
+	}
+
+	/**
+	 * Records every byte read from the connection, as it is read, and
+	 * every byte written, as it is written or queued in WRITE_ASYNC mode.
+	 * Recording costs the reading and writing threads a copy per read or
+	 * write; the recorder writes to disk on its own thread. The recorder
+	 * is not closed by this service.
+	 * @param recorder the recorder, or null to stop recording
+	 */
+	public void setCaptureRecorder(CaptureRecorder recorder) {
+		mCaptureRecorder = recorder;
+	}
+
+	public CaptureRecorder getCaptureRecorder() {
+		return mCaptureRecorder;
 	}
 
 	public void setConnectedThreadPriority(int desiredDeviceThreadPriority) {
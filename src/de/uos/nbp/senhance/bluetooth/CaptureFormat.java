@@ -0,0 +1,86 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The binary format of captured connection traffic, as written by
+ * {@link CaptureRecorder} and read by {@link ReplayTransport}.
+ *
+ * A capture is one or more segment files, each a complete capture on its
+ * own. All values are little-endian. A segment starts with a header:
+ * <pre>
+ *  0  int   magic "BTCP"
+ *  4  short version (1)
+ *  6  short header size, where the first record starts
+ *  8  long  wall-clock time of the start of the capture, ms since the epoch
+ * </pre>
+ * followed by records:
+ * <pre>
+ *  0  long  time since the start of the capture, ns
+ *  8  byte  direction, {@link #DIR_IN} or {@link #DIR_OUT}
+ *  9  int   length
+ * 13  the bytes as read from or written to the connection
+ * </pre>
+ * A direction of 0 ends the segment, so a segment that was preallocated
+ * and not filled (or whose writer died) ends at the first zero byte
+ * where a record should be.
+ */
+public final class CaptureFormat {
+	/** "BTCP" read as a little-endian int */
+	public static final int Magic = 0x50435442;
+	public static final int Version = 1;
+	public static final int HeaderSize = 16;
+	public static final int RecordHeaderSize = 13;
+
+	/** no record, the end of the segment */
+	public static final int DIR_END = 0;
+	/** bytes received from the remote device */
+	public static final int DIR_IN = 1;
+	/** bytes sent to the remote device */
+	public static final int DIR_OUT = 2;
+
+	private CaptureFormat() {
+	}
+
+	/**
+	 * Puts a segment header at the buffer's position, which advances.
+	 * @param buffer
+	 * @param startTime wall-clock start of the capture, ms since the epoch
+	 */
+	public static void putHeader(ByteBuffer buffer, long startTime) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(Magic);
+		buffer.putShort((short) Version);
+		buffer.putShort((short) HeaderSize);
+		buffer.putLong(startTime);
+	}
+
+	/**
+	 * Checks the segment header at the start of the buffer.
+	 * @param buffer switched to little-endian order
+	 * @return the offset of the first record
+	 * @throws IOException if this is not a capture of a version that can be read
+	 */
+	public static int checkHeader(ByteBuffer buffer) throws IOException {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if ((buffer.limit() < HeaderSize) || (buffer.getInt(0) != Magic))
+			throw new IOException("Not a capture file");
+		final int version = buffer.getShort(4) & 0xFFFF;
+		if (version != Version)
+			throw new IOException("Unsupported capture version "+version);
+		final int headerSize = buffer.getShort(6) & 0xFFFF;
+		if (headerSize < HeaderSize)
+			throw new IOException("Corrupt capture header");
+		return headerSize;
+	}
+
+	/**
+	 * @param buffer holding a header checked with {@link #checkHeader(ByteBuffer)}
+	 * @return the wall-clock start of the capture, ms since the epoch
+	 */
+	public static long getStartTime(ByteBuffer buffer) {
+		return buffer.getLong(8);
+	}
+}
@@ -0,0 +1,354 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Records the raw bytes of a connection, both directions, in the
+ * {@link CaptureFormat}, e.g. to replay a field session later through
+ * a {@link ReplayTransport}. Install it with
+ * {@link BluetoothService#setCaptureRecorder(CaptureRecorder)} or the
+ * same method of the other connections; one recorder serves one
+ * connection, as records do not say which connection they came from.
+ *
+ * {@link #record(int, byte[], int, int)} never blocks on the disk: it
+ * copies the record into a hand-off buffer, and a writer thread of its
+ * own appends the buffered records to the current segment. If the
+ * writer falls so far behind that the buffer is full, records are
+ * dropped and counted rather than stalling the connection.
+ *
+ * Segments are preallocated files of a fixed size, written through a
+ * memory mapping. When a record does not fit any more the next segment
+ * is started, and segments beyond {@link #setMaxSegments(int)} are
+ * deleted, oldest first. A finished segment is cut to the length written.
+ */
+public class CaptureRecorder {
+	/** Default size of each segment file */
+	public static final int DefSegmentSize = 16 * 1024 * 1024;
+	/** Default size of the hand-off buffer, so the most bytes of records waiting for the writer */
+	public static final int DefBufferSize = 256 * 1024;
+
+	private final File mDirectory;
+	private final String mPrefix;
+	private final int mSegmentSize;
+	/** wall-clock and nanoTime start of the capture, shared by all segments */
+	private final long mStartTime;
+	private final long mStartNanos;
+	private final Thread mWriter;
+
+	/* guarded by this */
+	/** records waiting for the writer, in write mode */
+	private ByteBuffer mFilling;
+	/** the buffer the writer is emptying, swapped with mFilling */
+	private ByteBuffer mDraining;
+	private boolean mClosing = false;
+	/** set if writing failed; nothing is recorded after that */
+	private IOException mFailure;
+	private long mRecordedBytes = 0;
+	private long mDroppedRecords = 0;
+	private long mDroppedBytes = 0;
+	/** old segments that could not be deleted */
+	private int mDeleteFailures = 0;
+	/** the segments kept, oldest first */
+	private final LinkedList<File> mSegments = new LinkedList<File>();
+	private int mMaxSegments = 0;
+
+	/* only touched by the writer thread, and by the constructor before it starts */
+	private int mNextSegment = 0;
+	private RandomAccessFile mFile;
+	private MappedByteBuffer mSegment;
+
+	/**
+	 * Creates the first segment and starts the writer thread.
+	 * @param directory where the segments are written
+	 * @param prefix segments are named prefix-0000.cap, prefix-0001.cap, ...;
+	 * existing files of these names are overwritten
+	 * @param segmentSize size of each segment file
+	 * @param bufferSize the most bytes of records waiting to be written;
+	 * longer records are always dropped
+	 * @param threadFactory creates the writer thread, null for a plain daemon thread
+	 * @throws IOException if the first segment cannot be created
+	 */
+	public CaptureRecorder(File directory, String prefix, int segmentSize, int bufferSize,
+			ThreadFactory threadFactory) throws IOException {
+		if ((bufferSize <= CaptureFormat.RecordHeaderSize) || (segmentSize < CaptureFormat.HeaderSize + bufferSize))
+			throw new IllegalArgumentException("segment size must exceed the buffer size by the header size");
+		mDirectory = directory;
+		mPrefix = prefix;
+		mSegmentSize = segmentSize;
+		mFilling = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+		mDraining = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+		mStartTime = System.currentTimeMillis();
+		mStartNanos = System.nanoTime();
+		openSegment();
+		final Runnable writer = new Runnable() {
+			public void run() {
+				write();
+			}
+		};
+		if (threadFactory != null) {
+			mWriter = threadFactory.newThread(writer);
+		} else {
+			mWriter = new Thread(writer, "CaptureRecorder " + prefix);
+			/* what has reached the mapping is written out by the system even if the process ends */
+			mWriter.setDaemon(true);
+		}
+		mWriter.start();
+	}
+
+	public CaptureRecorder(File directory, String prefix, int segmentSize, int bufferSize) throws IOException {
+		this(directory, prefix, segmentSize, bufferSize, null);
+	}
+
+	public CaptureRecorder(File directory, String prefix) throws IOException {
+		this(directory, prefix, DefSegmentSize, DefBufferSize, null);
+	}
+
+	/**
+	 * Keeps only the given number of most recent segments, so a long
+	 * capture takes a bounded amount of space.
+	 * @param maxSegments the most segments kept, 0 to keep all
+	 */
+	public synchronized void setMaxSegments(int maxSegments) {
+		if (maxSegments < 0)
+			throw new IllegalArgumentException("negative segment count");
+		mMaxSegments = maxSegments;
+		deleteOldSegments();
+	}
+
+	/**
+	 * Adds a record, stamped with the current time, for the writer. Never
+	 * waits for the disk; safe to call from any thread.
+	 * @param direction {@link CaptureFormat#DIR_IN} or {@link CaptureFormat#DIR_OUT}
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return false if the record was dropped because the hand-off buffer
+	 * is full or the recorder is closed
+	 * @throws IllegalArgumentException if the direction is not one of the above
+	 */
+	public boolean record(int direction, byte[] data, int offset, int length) {
+		/* anything else would end the segment for a reader */
+		if ((direction != CaptureFormat.DIR_IN) && (direction != CaptureFormat.DIR_OUT))
+			throw new IllegalArgumentException("unknown direction: "+direction);
+		final long nanos = System.nanoTime() - mStartNanos;
+		synchronized (this) {
+			final ByteBuffer buffer = mFilling;
+			if (mClosing || (mFailure != null)
+					|| (CaptureFormat.RecordHeaderSize + length > buffer.remaining())) {
+				mDroppedRecords++;
+				mDroppedBytes += length;
+				return false;
+			}
+			final boolean wasEmpty = (buffer.position() == 0);
+			buffer.putLong(nanos);
+			buffer.put((byte) direction);
+			buffer.putInt(length);
+			buffer.put(data, offset, length);
+			mRecordedBytes += length;
+			if (wasEmpty)
+				notify();
+			return true;
+		}
+	}
+
+	/**
+	 * The writer thread: takes the buffered records and appends them to
+	 * the segments until the recorder is closed.
+	 */
+	private void write() {
+		ByteBuffer records;
+		while (true) {
+			synchronized (this) {
+				while (!mClosing && (mFilling.position() == 0)) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						mClosing = true;
+					}
+				}
+				if (mFilling.position() == 0)
+					break;
+				records = mFilling;
+				mFilling = mDraining;
+				mDraining = records;
+			}
+			records.flip();
+			try {
+				append(records);
+			} catch (IOException e) {
+				fail(e);
+				break;
+			} finally {
+				records.clear();
+			}
+		}
+		try {
+			closeSegment();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Copies whole records to the segment, starting the next one where
+	 * a record does not fit.
+	 */
+	private void append(ByteBuffer records) throws IOException {
+		final byte[] data = records.array();
+		int start = 0;
+		final int end = records.limit();
+		while (start < end) {
+			/* as many records as fit */
+			final int room = mSegment.remaining();
+			int stop = start;
+			while (stop < end) {
+				final int size = CaptureFormat.RecordHeaderSize + records.getInt(stop + 9);
+				if (stop - start + size > room)
+					break;
+				stop += size;
+			}
+			if (stop == start) {
+				closeSegment();
+				openSegment();
+				continue;
+			}
+			mSegment.put(data, start, stop - start);
+			start = stop;
+		}
+	}
+
+	/**
+	 * Creates the next segment, preallocated and zeroed, and writes its header.
+	 */
+	private void openSegment() throws IOException {
+		final File file = new File(mDirectory, String.format("%s-%04d.cap", mPrefix, mNextSegment++));
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			/* drop what an earlier capture of the same name left */
+			raf.setLength(0);
+			raf.setLength(mSegmentSize);
+			mSegment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		mFile = raf;
+		CaptureFormat.putHeader(mSegment, mStartTime);
+		synchronized (this) {
+			mSegments.add(file);
+			deleteOldSegments();
+		}
+	}
+
+	/**
+	 * Writes the segment out and cuts it to the length written.
+	 */
+	private void closeSegment() throws IOException {
+		if (mFile == null)
+			return;
+		final int length = mSegment.position();
+		mSegment.force();
+		mSegment = null;
+		try {
+			/* not possible while mapped on some systems; the zero tail then ends the segment */
+			mFile.setLength(length);
+		} catch (IOException ignored) {
+		} finally {
+			mFile.close();
+			mFile = null;
+		}
+	}
+
+	private synchronized void deleteOldSegments() {
+		if (mMaxSegments == 0)
+			return;
+		while (mSegments.size() > mMaxSegments) {
+			final File oldest = mSegments.removeFirst();
+			if (!oldest.delete())
+				mDeleteFailures++;
+		}
+	}
+
+	private synchronized void fail(IOException e) {
+		if (mFailure == null)
+			mFailure = e;
+		mFilling.clear();
+	}
+
+	/**
+	 * Stops recording, waits for the buffered records to be written and
+	 * finishes the last segment. Records passed in afterwards are dropped.
+	 * @throws IOException if writing failed at any time
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			mClosing = true;
+			notify();
+		}
+		boolean interrupted = false;
+		while (mWriter.isAlive()) {
+			try {
+				mWriter.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		synchronized (this) {
+			if (mFailure != null)
+				throw mFailure;
+		}
+	}
+
+	/**
+	 * @return the segments kept so far, oldest first, e.g. for a
+	 * {@link ReplayTransport} once the recorder is closed
+	 */
+	public synchronized File[] getSegments() {
+		return mSegments.toArray(new File[mSegments.size()]);
+	}
+
+	/**
+	 * @return the bytes of data accepted for recording
+	 */
+	public synchronized long getRecordedBytes() {
+		return mRecordedBytes;
+	}
+
+	/**
+	 * @return the number of records dropped because the writer fell behind or the recorder was closed
+	 */
+	public synchronized long getDroppedRecords() {
+		return mDroppedRecords;
+	}
+
+	/**
+	 * @return the bytes of data in dropped records
+	 */
+	public synchronized long getDroppedBytes() {
+		return mDroppedBytes;
+	}
+
+	/**
+	 * @return the number of old segments that could not be deleted, see {@link #setMaxSegments(int)}
+	 */
+	public synchronized int getDeleteFailures() {
+		return mDeleteFailures;
+	}
+
+	/**
+	 * @return what made writing fail, or null
+	 */
+	public synchronized IOException getFailure() {
+		return mFailure;
+	}
+}
@@ -0,0 +1,451 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.UUID;
+
+/**
+ * A framed packet connection over a non-blocking channel, serviced by an
+ * event loop of a {@link PacketGateway}, which creates it.
+ *
+ * Received data is decoded on the loop straight out of the loop's read
+ * buffer. Sending never blocks: a frame is written to the channel right
+ * away if nothing is queued before it, and whatever the channel does not
+ * take is queued and written by the loop once the channel is writable.
+ * When more than {@link #DefMaxQueuedBytes} are waiting, sends fail
+ * rather than wait, as waiting on the loop's own thread would never end.
+ */
+public class ChannelPacketConnection implements PacketConnection, Framer.Sink {
+	/** Default limit on the bytes queued for a slow channel */
+	public static final int DefMaxQueuedBytes = 65536;
+
+	private final PacketGateway.EventLoop mLoop;
+	private final SocketChannel mChannel;
+	private final PacketConnectionHandler mConnHandler;
+	private final Framer mFramer;
+	private final PacketPool mPacketPool;
+	/** NB: written by the loop only, so other threads may see stale counts */
+	private final int[] mDropCounts = new int[Framer.DROP_REASONS];
+	/** if set, records the bytes read from and sent on the channel */
+	private volatile CaptureRecorder mCaptureRecorder;
+
+	/** only accessed on the loop */
+	private SelectionKey mKey;
+	/** true until a non-blocking connect has finished */
+	volatile boolean mConnecting = false;
+	private volatile State mState = State.Disconnected;
+	/** set once the connection has been closed or lost, guarded by this */
+	private boolean mClosed = false;
+
+	/* the rest is guarded by this */
+	/** frames are encoded into this, grown if a packet needs more */
+	private byte[] mSendBuffer;
+	private ByteBuffer mSendWrapper;
+	/** bytes the channel has not taken yet, in write mode */
+	private ByteBuffer mQueue = ByteBuffer.allocate(DefMaxQueuedBytes);
+	/** whether the loop has been asked to wait for the channel to become writable */
+	private boolean mWriteInterest = false;
+	/** total bytes ever queued and written, to tell when a send is complete */
+	private long mQueuedBytes = 0;
+	private long mWrittenBytes = 0;
+	/** sends waiting to be reported, in the order they were queued */
+	private LinkedList<PendingSend> mPendingSends = new LinkedList<PendingSend>();
+
+	/** time in milliseconds since Unix epoch at which the data being decoded was received */
+	private long mReceiveTime;
+	/** System.nanoTime() in milliseconds at which the data being decoded was received */
+	private long mReceiveMillis;
+
+	ChannelPacketConnection(PacketGateway.EventLoop loop, SocketChannel channel,
+			PacketConnectionHandler connHandler, Framer framer, int maxPacketSize) {
+		mLoop = loop;
+		mChannel = channel;
+		mConnHandler = connHandler;
+		mFramer = framer;
+		mPacketPool = new PacketPool(maxPacketSize);
+		/* received packets hold the trailer until the frame is checked */
+		mPacketPool.setCapacityLimit(maxPacketSize + framer.getTrailerSize());
+		mSendBuffer = new byte[framer.maxEncodedLength(maxPacketSize)];
+		mSendWrapper = ByteBuffer.wrap(mSendBuffer);
+	}
+
+	/**
+	 * Connections are opened by the {@link PacketGateway}, so this does
+	 * nothing while the connection is being established or up. Once it
+	 * has been closed or lost it cannot be reopened, and the handler's
+	 * connectFailed() is called on the calling thread; ask the gateway
+	 * for a new connection instead.
+	 */
+	@Override
+	public void connect() {
+		synchronized (this) {
+			if (!mClosed)
+				return;
+		}
+		mConnHandler.connectFailed("ChannelPacketConnection is closed; connect through the PacketGateway");
+	}
+
+	/**
+	 * Same as {@link #connect()}; the port is ignored.
+	 */
+	@Override
+	public void connect(int port) {
+		connect();
+	}
+
+	/**
+	 * Same as {@link #connect()}; the UUID is ignored.
+	 */
+	@Override
+	public void connect(UUID uuid) {
+		connect();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return ((mState != State.Disconnected) && (mState != State.Dead));
+	}
+
+	/**
+	 * Forgets any partially received frame. Only call this on the
+	 * connection's loop, e.g. from a handler callback.
+	 */
+	@Override
+	public void discard() {
+		if (isConnected())
+			mFramer.reset();
+	}
+
+	/**
+	 * Frames the packet and writes or queues it without blocking.
+	 * @throws IOException if not connected, the write fails or too much is queued already
+	 */
+	@Override
+	public void send(Packet pkt) throws IOException {
+		queue(pkt, null);
+	}
+
+	/**
+	 * Like {@link #send(Packet)}; the callback is called once the channel
+	 * has taken the whole frame, possibly on the loop.
+	 */
+	@Override
+	public void sendAsync(Packet pkt, SendCallback callback) {
+		final boolean written;
+		try {
+			written = queue(pkt, callback);
+		} catch (IOException e) {
+			callback.sendFailed(pkt, e);
+			return;
+		}
+		if (written)
+			callback.sendCompleted(pkt);
+	}
+
+	/**
+	 * Encodes the packet, writes as much of it as the channel takes and
+	 * queues the rest.
+	 * @param callback if given, added to the pending sends unless the frame was written
+	 * @return true if the whole frame was written
+	 */
+	private synchronized boolean queue(Packet pkt, SendCallback callback) throws IOException {
+		if (!isConnected())
+			throw new IOException("ChannelPacketConnection is not connected");
+		final int frameLength = mFramer.maxEncodedLength(pkt.getLength());
+		if (mSendBuffer.length < frameLength) {
+			mSendBuffer = new byte[frameLength];
+			mSendWrapper = ByteBuffer.wrap(mSendBuffer);
+		}
+		final int queued = mQueue.position();
+		if ((queued > 0) && (frameLength > mQueue.remaining()))
+			throw new IOException("Send queue full, "+queued+" bytes waiting");
+		final int length = mFramer.encode(pkt, mSendBuffer, 0);
+		final CaptureRecorder recorder = mCaptureRecorder;
+		if (recorder != null)
+			recorder.record(CaptureFormat.DIR_OUT, mSendBuffer, 0, length);
+		mSendWrapper.limit(length).position(0);
+		if (queued == 0)
+			mChannel.write(mSendWrapper);
+		mQueuedBytes += length;
+		mWrittenBytes += mSendWrapper.position();
+		if (!mSendWrapper.hasRemaining())
+			return true;
+
+		if (mSendWrapper.remaining() > mQueue.capacity()) {
+			/* a single frame larger than the queue */
+			mQueue = ByteBuffer.allocate(mSendWrapper.remaining());
+		}
+		mQueue.put(mSendWrapper);
+		if (callback != null)
+			mPendingSends.add(new PendingSend(mQueuedBytes, pkt, callback));
+		if (!mWriteInterest) {
+			mWriteInterest = true;
+			if (mLoop.isCurrentThread())
+				updateInterest();
+			else
+				mLoop.post(this);
+		}
+		return false;
+	}
+
+	/**
+	 * Called on the loop to register the channel with its Selector or, once
+	 * registered, to apply a change of write interest.
+	 */
+	void registerOrUpdate(Selector selector) {
+		if (mKey != null) {
+			updateInterest();
+			return;
+		}
+		synchronized (this) {
+			if (mClosed)
+				return;
+		}
+		try {
+			mKey = mChannel.register(selector, mConnecting ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, this);
+		} catch (ClosedChannelException e) {
+			/* e.g. closed by an acceptor that threw */
+			connectionLost("channel closed before it was registered");
+			return;
+		}
+		if (!mConnecting)
+			connectionEstablished();
+	}
+
+	private void connectionEstablished() {
+		mFramer.reset();
+		mState = State.Ready;
+		updateInterest();
+		mConnHandler.connected();
+	}
+
+	/**
+	 * Waits for readability, and for writability while data is queued.
+	 */
+	private void updateInterest() {
+		final SelectionKey key = mKey;
+		if ((key == null) || !key.isValid() || mConnecting)
+			return;
+		final boolean write;
+		synchronized (this) {
+			write = mWriteInterest;
+		}
+		key.interestOps(write ? (SelectionKey.OP_READ | SelectionKey.OP_WRITE) : SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Called on the loop when a non-blocking connect has finished.
+	 */
+	void connectReady() {
+		try {
+			if (!mChannel.finishConnect())
+				return;
+		} catch (IOException e) {
+			synchronized (this) {
+				if (mClosed)
+					return;
+				mClosed = true;
+			}
+			closeChannel();
+			mConnHandler.connectFailed("connect() failed: " + e.getLocalizedMessage());
+			return;
+		}
+		mConnecting = false;
+		connectionEstablished();
+	}
+
+	/**
+	 * Called on the loop when the channel has data; reads once and decodes it.
+	 * @param buffer the loop's read buffer
+	 */
+	void readReady(ByteBuffer buffer) {
+		buffer.clear();
+		final int reading;
+		try {
+			reading = mChannel.read(buffer);
+		} catch (IOException e) {
+			connectionLost(e.getLocalizedMessage());
+			return;
+		}
+		if (reading < 0) {
+			connectionLost("end of stream reached");
+			return;
+		}
+		mReceiveTime = System.currentTimeMillis();
+		mReceiveMillis = System.nanoTime() / 1000000;
+		final CaptureRecorder recorder = mCaptureRecorder;
+		if (recorder != null)
+			recorder.record(CaptureFormat.DIR_IN, buffer.array(), buffer.arrayOffset(), reading);
+		mFramer.decode(buffer.array(), buffer.arrayOffset(), reading, this);
+	}
+
+	/**
+	 * Called on the loop when the channel takes more data.
+	 */
+	void writeReady() {
+		try {
+			synchronized (this) {
+				mQueue.flip();
+				try {
+					mWrittenBytes += mChannel.write(mQueue);
+				} finally {
+					mQueue.compact();
+				}
+				if (mQueue.position() == 0)
+					mWriteInterest = false;
+			}
+		} catch (IOException e) {
+			connectionLost("Write failed: " + e.getLocalizedMessage());
+			return;
+		}
+		updateInterest();
+		completeSends();
+	}
+
+	/**
+	 * Reports the sends that are now complete.
+	 */
+	private void completeSends() {
+		PendingSend done;
+		while (true) {
+			synchronized (this) {
+				if (mPendingSends.isEmpty() || (mPendingSends.getFirst().mEnd > mWrittenBytes))
+					return;
+				done = mPendingSends.removeFirst();
+			}
+			done.mCallback.sendCompleted(done.mPacket);
+		}
+	}
+
+	/**
+	 * Called on the loop when a handler callback of this connection has
+	 * thrown, so the exception ends this connection only.
+	 */
+	void callbackFailed(RuntimeException e) {
+		connectionLost("Handler failed: " + e);
+	}
+
+	/**
+	 * Called on the loop when the channel fails.
+	 */
+	private void connectionLost(String message) {
+		synchronized (this) {
+			if (mClosed)
+				return;
+			mClosed = true;
+		}
+		mState = State.Disconnected;
+		closeChannel();
+		mFramer.reset();
+		failSends("Connection lost: " + message);
+		mConnHandler.connectionLost(message);
+	}
+
+	/**
+	 * Closes the channel and calls connectionClosed() on the calling
+	 * thread, unless the connection has been closed or lost already.
+	 * Queued data is dropped and its sends fail.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (mClosed)
+				return;
+			mClosed = true;
+		}
+		mState = State.Dead;
+		closeChannel();
+		failSends("Connection closed");
+		mConnHandler.connectionClosed();
+	}
+
+	private void closeChannel() {
+		try {
+			/* also cancels the key */
+			mChannel.close();
+		} catch (IOException ignored) {}
+	}
+
+	private void failSends(String reason) {
+		final LinkedList<PendingSend> failed;
+		synchronized (this) {
+			mQueue.clear();
+			mWriteInterest = false;
+			failed = mPendingSends;
+			mPendingSends = new LinkedList<PendingSend>();
+		}
+		for (PendingSend send : failed) {
+			send.mCallback.sendFailed(send.mPacket, new IOException(reason));
+		}
+	}
+
+	/**
+	 * Called by the framer when a frame starts.
+	 */
+	@Override
+	public Packet obtainPacket() {
+		Packet pkt = mPacketPool.obtain();
+		pkt.mStartTime = mReceiveTime;
+		pkt.packetStartMillis = mReceiveMillis;
+		return pkt;
+	}
+
+	/**
+	 * Called by the framer with a complete packet.
+	 */
+	@Override
+	public void frameReceived(Packet pkt) {
+		pkt.mEndTime = mReceiveTime;
+		pkt.packetEndMillis = mReceiveMillis;
+		mConnHandler.packetReceived(pkt);
+	}
+
+	/**
+	 * Called by the framer when a frame is discarded.
+	 */
+	@Override
+	public void frameDropped(int reason) {
+		mDropCounts[reason]++;
+	}
+
+	/**
+	 * @param reason one of the Framer.DROP_ constants
+	 * @return the number of received frames dropped for the given reason
+	 */
+	public int getDropCount(int reason) {
+		return mDropCounts[reason];
+	}
+
+	/**
+	 * Records every byte read from the channel and every frame sent, as it
+	 * is written or queued. The recorder writes to disk on its own thread
+	 * and is not closed by this connection.
+	 * @param recorder the recorder, or null to stop recording
+	 */
+	public void setCaptureRecorder(CaptureRecorder recorder) {
+		mCaptureRecorder = recorder;
+	}
+
+	/**
+	 * @return the number of bytes waiting for the channel
+	 */
+	public synchronized int getQueuedBytes() {
+		return mQueue.position();
+	}
+
+	public Framer getFramer() {
+		return mFramer;
+	}
+
+	public SocketChannel getChannel() {
+		return mChannel;
+	}
+
+	public String getName() {
+		return String.valueOf(mChannel.socket().getRemoteSocketAddress());
+	}
+}
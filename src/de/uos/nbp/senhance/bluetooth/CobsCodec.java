@@ -0,0 +1,182 @@
+package de.uos.nbp.senhance.bluetooth;
+
+/**
+ * Consistent Overhead Byte Stuffing (COBS).
+ *
+ * The payload is split at its zero bytes into blocks; each block is sent as
+ * a code byte giving its length plus one, followed by its non-zero bytes.
+ * Blocks of 254 non-zero bytes get code 0xFF and no implied zero. The
+ * encoded frame therefore contains no zero byte and is terminated by a
+ * single 0x00. Unlike escaping, the overhead does not depend on the data:
+ * at most one byte per 254, plus the code byte and the delimiter.
+ *
+ * @see <a href="http://www.stuartcheshire.org/papers/COBSforToN.pdf">Cheshire, Baker: Consistent Overhead Byte Stuffing</a>
+ */
+public class CobsCodec {
+	/** terminates every frame, never appears inside one */
+	public static final int Delimiter = 0x00;
+
+	private CobsCodec() {
+	}
+
+	/**
+	 * @param payloadLength
+	 * @return the size of the largest frame, including delimiter, a payload of the given length can produce
+	 */
+	public static int maxEncodedLength(int payloadLength) {
+		return payloadLength + payloadLength/254 + 2;
+	}
+
+	/**
+	 * Encodes a frame into a caller-supplied array, a byte or a block at a
+	 * time, so that a trailer can be added to the payload without copying
+	 * it. Reused for every frame, so it does not allocate.
+	 */
+	public static class Encoder {
+		private byte[] mOut;
+		private int mPos;
+		/** index of the code byte of the current block */
+		private int mCodePos;
+		private int mCode;
+
+		/**
+		 * Starts a frame.
+		 * @param out must have room for {@link CobsCodec#maxEncodedLength(int)} bytes from pos
+		 * @param pos
+		 */
+		public void begin(byte[] out, int pos) {
+			mOut = out;
+			mCodePos = pos;
+			mPos = pos + 1;
+			mCode = 1;
+		}
+
+		public void write(byte bb) {
+			if (bb == 0) {
+				endBlock();
+			} else {
+				mOut[mPos++] = bb;
+				if (++mCode == 0xFF)
+					endBlock();
+			}
+		}
+
+		public void write(byte[] data, int offset, int length) {
+			final byte[] out = mOut;
+			int pos = mPos;
+			int codePos = mCodePos;
+			int code = mCode;
+			for (int ii = offset; ii < offset+length; ii++) {
+				final byte bb = data[ii];
+				if (bb == 0) {
+					out[codePos] = (byte) code;
+					codePos = pos++;
+					code = 1;
+				} else {
+					out[pos++] = bb;
+					if (++code == 0xFF) {
+						out[codePos] = (byte) code;
+						codePos = pos++;
+						code = 1;
+					}
+				}
+			}
+			mPos = pos;
+			mCodePos = codePos;
+			mCode = code;
+		}
+
+		/**
+		 * Closes the last block and appends the delimiter.
+		 * @return the index after the frame
+		 */
+		public int finish() {
+			mOut[mCodePos] = (byte) mCode;
+			mOut[mPos++] = (byte) Delimiter;
+			mOut = null;
+			return mPos;
+		}
+
+		private void endBlock() {
+			mOut[mCodePos] = (byte) mCode;
+			mCodePos = mPos++;
+			mCode = 1;
+		}
+	}
+
+	/**
+	 * Decodes a stream of frames one byte at a time. Every input byte
+	 * produces at most one output byte, so {@link #decode(int)} returns
+	 * either that byte or one of the negative results.
+	 */
+	public static class Decoder {
+		/** the byte produced no output */
+		public static final int NONE = -1;
+		/** the byte was the first of a new frame and produced no output */
+		public static final int FRAME_START = -2;
+		/** the delimiter ended a complete frame */
+		public static final int FRAME_END = -3;
+		/** the delimiter ended a truncated frame, which must be dropped */
+		public static final int FRAME_ERROR = -4;
+
+		private boolean mInFrame = false;
+		/** true after {@link #skipFrame()} until the next delimiter */
+		private boolean mSkipping = false;
+		/** code byte of the current block */
+		private int mBlockCode;
+		/** data bytes left in the current block */
+		private int mRemaining;
+
+		/**
+		 * @param bb next byte, 0 to 255
+		 * @return the decoded byte (0 to 255) or one of the negative results
+		 */
+		public int decode(int bb) {
+			if (bb == Delimiter) {
+				final boolean inFrame = mInFrame && !mSkipping;
+				mInFrame = false;
+				mSkipping = false;
+				if (!inFrame)
+					return NONE;
+				return (mRemaining == 0) ? FRAME_END : FRAME_ERROR;
+			}
+			if (mSkipping)
+				return NONE;
+			if (!mInFrame) {
+				mInFrame = true;
+				mBlockCode = bb;
+				mRemaining = bb - 1;
+				return FRAME_START;
+			}
+			if (mRemaining == 0) {
+				/* a code byte: the previous block ended with an implied zero, unless it was full */
+				final boolean zero = (mBlockCode != 0xFF);
+				mBlockCode = bb;
+				mRemaining = bb - 1;
+				return zero ? 0 : NONE;
+			}
+			mRemaining--;
+			return bb;
+		}
+
+		/**
+		 * Ignores everything up to the next delimiter, e.g. the rest of a
+		 * frame that is too long.
+		 */
+		public void skipFrame() {
+			mSkipping = true;
+		}
+
+		/**
+		 * Forgets any partial frame, e.g. after reconnecting.
+		 */
+		public void reset() {
+			mInFrame = false;
+			mSkipping = false;
+		}
+
+		public boolean isInFrame() {
+			return mInFrame && !mSkipping;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import de.uos.nbp.senhance.bluetooth.PacketConnection.Packet;
+
+/**
+ * Frames packets with Consistent Overhead Byte Stuffing, see
+ * {@link CobsCodec}. Every frame ends with 0x00 and is at most one byte
+ * per 254 (plus two) longer than its payload, whatever the data.
+ */
+public class CobsFramer extends AbstractFramer {
+	private final CobsCodec.Encoder mEncoder = new CobsCodec.Encoder();
+	private final CobsCodec.Decoder mDecoder = new CobsCodec.Decoder();
+
+	@Override
+	public int maxEncodedLength(int payloadLength) {
+		return CobsCodec.maxEncodedLength(payloadLength + getTrailerSize());
+	}
+
+	@Override
+	public void decode(byte[] data, int offset, int length, Sink sink) {
+		final CobsCodec.Decoder decoder = mDecoder;
+		final int end = offset + length;
+		for (int ii = offset; ii < end; ii++) {
+			final int decoded = decoder.decode(data[ii] & 0xFF);
+			if (decoded >= 0) {
+				/* too long: skip straight to the next delimiter */
+				if (!receiveByte(sink, decoded))
+					decoder.skipFrame();
+			} else if (decoded == CobsCodec.Decoder.FRAME_START) {
+				beginFrame(sink);
+			} else if (decoded == CobsCodec.Decoder.FRAME_END) {
+				endFrame(sink);
+			} else if (decoded == CobsCodec.Decoder.FRAME_ERROR) {
+				dropFrame(sink, DROP_MALFORMED);
+			}
+		}
+	}
+
+	/**
+	 * NB: uses an encoder held by the framer, so frames must not be
+	 * encoded concurrently.
+	 */
+	@Override
+	public int encode(Packet pkt, byte[] out, int offset) {
+		final CobsCodec.Encoder encoder = mEncoder;
+		encoder.begin(out, offset);
+		encoder.write(pkt.mData, 0, pkt.getLength());
+		final int trailer = getTrailerSize();
+		if (trailer > 0) {
+			final int crc = computeCrc(pkt);
+			for (int ii = 0; ii < trailer; ii++)
+				encoder.write((byte) trailerByte(crc, ii));
+		}
+		return encoder.finish();
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		mDecoder.reset();
+	}
+}
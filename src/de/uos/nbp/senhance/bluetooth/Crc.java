@@ -0,0 +1,133 @@
+package de.uos.nbp.senhance.bluetooth;
+
+/**
+ * Table-driven CRC-16 and CRC-32 checksums for frame trailers, and
+ * CRC-8 for short headers.
+ *
+ * CRC-16 is CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF,
+ * not reflected) and is sent most significant byte first. CRC-32 is the
+ * CRC-32 of zip and Ethernet (reflected polynomial 0xEDB88320, initial
+ * value and final XOR 0xFFFFFFFF) and is sent least significant byte first.
+ * CRC-8 is CRC-8/SMBUS (polynomial 0x07, initial value 0).
+ *
+ * The update functions work on the raw register and can be fed one byte
+ * at a time, e.g. from a deframer. Running the register over a frame
+ * including its trailer leaves the constant {@link #Crc16Residue} or
+ * {@link #Crc32Residue} if the frame is intact, so a receiver can check
+ * it without knowing where the payload ends.
+ */
+public final class Crc {
+	public static final int Crc8Init = 0;
+
+	public static final int Crc16Size = 2;
+	public static final int Crc16Init = 0xFFFF;
+	/** register value after a frame and its CRC-16 trailer */
+	public static final int Crc16Residue = 0;
+
+	public static final int Crc32Size = 4;
+	public static final int Crc32Init = 0xFFFFFFFF;
+	/** register value after a frame and its CRC-32 trailer */
+	public static final int Crc32Residue = 0xDEBB20E3;
+
+	private static final int[] Crc8Table = new int[256];
+	private static final int[] Crc16Table = new int[256];
+	/** slicing-by-8 tables, Crc32Tables[0] is the ordinary byte-wise table */
+	private static final int[][] Crc32Tables = new int[8][256];
+
+	static {
+		for (int ii = 0; ii < 256; ii++) {
+			int crc = ii;
+			for (int bit = 0; bit < 8; bit++)
+				crc = ((crc & 0x80) != 0) ? (crc << 1) ^ 0x07 : crc << 1;
+			Crc8Table[ii] = crc & 0xFF;
+
+			crc = ii << 8;
+			for (int bit = 0; bit < 8; bit++)
+				crc = ((crc & 0x8000) != 0) ? (crc << 1) ^ 0x1021 : crc << 1;
+			Crc16Table[ii] = crc & 0xFFFF;
+
+			crc = ii;
+			for (int bit = 0; bit < 8; bit++)
+				crc = ((crc & 1) != 0) ? (crc >>> 1) ^ 0xEDB88320 : crc >>> 1;
+			Crc32Tables[0][ii] = crc;
+		}
+		for (int ii = 0; ii < 256; ii++) {
+			int crc = Crc32Tables[0][ii];
+			for (int slice = 1; slice < 8; slice++) {
+				crc = (crc >>> 8) ^ Crc32Tables[0][crc & 0xFF];
+				Crc32Tables[slice][ii] = crc;
+			}
+		}
+	}
+
+	private Crc() {
+	}
+
+	/**
+	 * @param crc register, starting with {@link #Crc8Init}
+	 * @param bb next byte
+	 * @return the updated register, which is also the checksum
+	 */
+	public static int update8(int crc, int bb) {
+		return Crc8Table[(crc ^ bb) & 0xFF];
+	}
+
+	/**
+	 * @param crc register, starting with {@link #Crc16Init}
+	 * @param bb next byte
+	 * @return the updated register
+	 */
+	public static int update16(int crc, int bb) {
+		return ((crc << 8) ^ Crc16Table[((crc >>> 8) ^ bb) & 0xFF]) & 0xFFFF;
+	}
+
+	public static int update16(int crc, byte[] data, int offset, int length) {
+		final int[] table = Crc16Table;
+		for (int ii = offset; ii < offset+length; ii++)
+			crc = ((crc << 8) ^ table[((crc >>> 8) ^ data[ii]) & 0xFF]) & 0xFFFF;
+		return crc;
+	}
+
+	/**
+	 * @param crc register, starting with {@link #Crc32Init}
+	 * @param bb next byte
+	 * @return the updated register; the checksum is its complement
+	 */
+	public static int update32(int crc, int bb) {
+		return (crc >>> 8) ^ Crc32Tables[0][(crc ^ bb) & 0xFF];
+	}
+
+	/**
+	 * Updates the register with a block of bytes, eight at a time.
+	 */
+	public static int update32(int crc, byte[] data, int offset, int length) {
+		final int[] t0 = Crc32Tables[0], t1 = Crc32Tables[1], t2 = Crc32Tables[2], t3 = Crc32Tables[3],
+				t4 = Crc32Tables[4], t5 = Crc32Tables[5], t6 = Crc32Tables[6], t7 = Crc32Tables[7];
+		int pos = offset;
+		final int end = offset + length;
+		while (pos <= end - 8) {
+			final int lo = crc ^ ((data[pos]&0xFF) | ((data[pos+1]&0xFF)<<8)
+					| ((data[pos+2]&0xFF)<<16) | ((data[pos+3]&0xFF)<<24));
+			crc = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+					^ t3[data[pos+4]&0xFF] ^ t2[data[pos+5]&0xFF] ^ t1[data[pos+6]&0xFF] ^ t0[data[pos+7]&0xFF];
+			pos += 8;
+		}
+		while (pos < end)
+			crc = (crc >>> 8) ^ t0[(crc ^ data[pos++]) & 0xFF];
+		return crc;
+	}
+
+	/**
+	 * @return the CRC-16/CCITT-FALSE of the given bytes
+	 */
+	public static int crc16(byte[] data, int offset, int length) {
+		return update16(Crc16Init, data, offset, length);
+	}
+
+	/**
+	 * @return the CRC-32 of the given bytes
+	 */
+	public static int crc32(byte[] data, int offset, int length) {
+		return ~update32(Crc32Init, data, offset, length);
+	}
+}
@@ -0,0 +1,252 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+
+import de.uos.nbp.senhance.bluetooth.PacketConnection.Packet;
+
+/**
+ * Compresses blocks of integer samples (e.g. an ECG stream) by
+ * delta encoding them and bit-packing the deltas at the smallest
+ * width the block needs (frame of reference).
+ *
+ * A block is stored as:
+ * <ul>
+ * <li>the number of samples n, as a varint</li>
+ * <li>the first sample, as a signed varint (only if n > 0)</li>
+ * <li>the smallest delta between consecutive samples, as a signed varint</li>
+ * <li>the bit width w, as one byte</li>
+ * <li>the n-1 deltas minus the smallest delta, w bits each, least significant
+ *  bit first, padded to a whole byte</li>
+ * </ul>
+ * Every block stands on its own, so losing a packet only loses the blocks
+ * in it. Arithmetic wraps around like Java int arithmetic, so any int
+ * sequence is restored exactly.
+ *
+ * The codec works on plain packets and does not depend on a connection;
+ * {@link StreamEncoder} sends the blocks of a continuous stream through a
+ * {@link PacketConnection}, and {@link #decodePacket(Packet, int[], int)}
+ * restores them in {@link PacketConnectionHandler#packetReceived(Packet)}.
+ */
+public class DeltaBitPackCodec {
+	/** Default number of samples per block. */
+	public static final int DefBlockSize = 128;
+
+	/** bytes the header of a block takes up at most */
+	private static final int MaxHeaderSize = 3*Packet.MaxVarIntSize + 1;
+
+	private DeltaBitPackCodec() {
+	}
+
+	/**
+	 * @param count number of samples
+	 * @return the most bytes a block of count samples can take up
+	 */
+	public static int maxEncodedSize(int count) {
+		return MaxHeaderSize + 4*count;
+	}
+
+	/**
+	 * Appends {@value count} samples, starting at {@value offset}, to the
+	 * packet as one block.
+	 * @param samples
+	 * @param offset
+	 * @param count
+	 * @param out the block is written at the packet's position, which is moved past it
+	 * @return the number of bytes written
+	 */
+	public static int encodeBlock(int[] samples, int offset, int count, Packet out) {
+		if ((offset < 0) || (count < 0) || (offset > samples.length - count))
+			throw new ArrayIndexOutOfBoundsException("offset "+offset+" and count "+count
+					+" exceed array of "+samples.length);
+		final int start = out.mPosition;
+		out.appendVarInt(count);
+		if (count == 0)
+			return out.mPosition - start;
+
+		final int first = samples[offset];
+		int minDelta = 0;
+		int maxDelta = 0;
+		if (count > 1) {
+			minDelta = maxDelta = samples[offset+1] - first;
+			for (int ii = offset+2; ii < offset+count; ii++) {
+				int delta = samples[ii] - samples[ii-1];
+				if (delta < minDelta)
+					minDelta = delta;
+				else if (delta > maxDelta)
+					maxDelta = delta;
+			}
+		}
+		/* the range is unsigned: it can exceed Integer.MAX_VALUE */
+		final int width = 32 - Integer.numberOfLeadingZeros(maxDelta - minDelta);
+
+		out.appendSVarInt(first);
+		out.appendSVarInt(minDelta);
+		out.appendByte(width);
+
+		final int packedBytes = (int) (((long) (count-1)*width + 7) / 8);
+		out.ensureCapacity(out.mPosition + packedBytes);
+		final byte[] data = out.mData;
+		int pos = out.mPosition;
+		long acc = 0;
+		int bits = 0;
+		for (int ii = offset+1; ii < offset+count; ii++) {
+			acc |= ((samples[ii] - samples[ii-1] - minDelta) & 0xFFFFFFFFL) << bits;
+			bits += width;
+			while (bits >= 8) {
+				data[pos++] = (byte) acc;
+				acc >>>= 8;
+				bits -= 8;
+			}
+		}
+		if (bits > 0)
+			data[pos++] = (byte) acc;
+		out.markWritten(pos);
+		out.mPosition = pos;
+		return pos - start;
+	}
+
+	/**
+	 * Decodes the block at the packet's position into out, starting at
+	 * {@value offset}, and moves the position past it. Does not allocate.
+	 * @param in
+	 * @param out
+	 * @param offset
+	 * @return the number of samples decoded
+	 * @throws ArrayIndexOutOfBoundsException if out is too small or the block is truncated
+	 * @throws IllegalArgumentException if the block is malformed
+	 */
+	public static int decodeBlock(Packet in, int[] out, int offset) {
+		final int count = in.popVarInt();
+		if ((count < 0) || (offset < 0) || (offset > out.length - count))
+			throw new ArrayIndexOutOfBoundsException("block of "+count+" samples does not fit at "
+					+offset+" into array of "+out.length);
+		if (count == 0)
+			return 0;
+
+		int value = in.popSVarInt();
+		final int minDelta = in.popSVarInt();
+		final int width = in.popUByte();
+		if (width > 32)
+			throw new IllegalArgumentException("invalid bit width "+width);
+		final int packedBytes = (int) (((long) (count-1)*width + 7) / 8);
+		if (in.mPosition + packedBytes > in.getLength())
+			throw new ArrayIndexOutOfBoundsException("block of "+count+" samples is truncated");
+
+		out[offset] = value;
+		final byte[] data = in.mData;
+		final long mask = (1L << width) - 1;
+		int pos = in.mPosition;
+		long acc = 0;
+		int bits = 0;
+		for (int ii = offset+1; ii < offset+count; ii++) {
+			while (bits < width) {
+				acc |= (long) (data[pos++] & 0xFF) << bits;
+				bits += 8;
+			}
+			value += (int) (acc & mask) + minDelta;
+			acc >>>= width;
+			bits -= width;
+			out[ii] = value;
+		}
+		in.mPosition += packedBytes;
+		return count;
+	}
+
+	/**
+	 * Decodes all blocks in the packet, from its start to its end, e.g.
+	 * a packet written by a {@link StreamEncoder}.
+	 * @param in
+	 * @param out
+	 * @param offset
+	 * @return the number of samples decoded
+	 */
+	public static int decodePacket(Packet in, int[] out, int offset) {
+		in.setDataPosition(0);
+		int total = 0;
+		while (in.mPosition < in.getLength()) {
+			total += decodeBlock(in, out, offset + total);
+		}
+		return total;
+	}
+
+	/**
+	 * Compresses a continuous stream of samples into blocks and sends
+	 * them through a connection, packing as many blocks into a packet as
+	 * fit within the maximum packet size. The block buffer and the packet
+	 * are reused, so once running the encoder does not allocate.
+	 *
+	 * NB: packets are sent with {@link PacketConnection#send(Packet)}, which
+	 * has copied the packet by the time it returns. Not thread-safe.
+	 */
+	public static class StreamEncoder {
+		private final PacketConnection mConnection;
+		private final int mMaxPacketSize;
+		private final int[] mBlock;
+		private int mBlockLength = 0;
+		private final Packet mPacket;
+
+		/**
+		 * @param connection where packets are sent
+		 * @param blockSize samples per block
+		 * @param maxPacketSize the most bytes in a packet, at least maxEncodedSize(blockSize)
+		 */
+		public StreamEncoder(PacketConnection connection, int blockSize, int maxPacketSize) {
+			if (maxPacketSize < maxEncodedSize(blockSize))
+				throw new IllegalArgumentException("a block of "+blockSize
+						+" samples may not fit into "+maxPacketSize+" bytes");
+			mConnection = connection;
+			mMaxPacketSize = maxPacketSize;
+			mBlock = new int[blockSize];
+			mPacket = new Packet(maxPacketSize);
+		}
+
+		public StreamEncoder(PacketConnection connection) {
+			this(connection, DefBlockSize, maxEncodedSize(DefBlockSize));
+		}
+
+		/**
+		 * Adds one sample, sending a packet when it is full.
+		 */
+		public void write(int sample) throws IOException {
+			mBlock[mBlockLength++] = sample;
+			if (mBlockLength == mBlock.length)
+				endBlock();
+		}
+
+		/**
+		 * Adds {@value count} samples, starting at {@value offset}.
+		 */
+		public void write(int[] samples, int offset, int count) throws IOException {
+			for (int ii = offset; ii < offset+count; ii++) {
+				mBlock[mBlockLength++] = samples[ii];
+				if (mBlockLength == mBlock.length)
+					endBlock();
+			}
+		}
+
+		/**
+		 * Encodes any buffered samples and sends whatever has been encoded.
+		 */
+		public void flush() throws IOException {
+			if (mBlockLength > 0)
+				endBlock();
+			if (mPacket.getLength() > 0)
+				sendPacket();
+		}
+
+		private void endBlock() throws IOException {
+			if (mPacket.mPosition + maxEncodedSize(mBlockLength) > mMaxPacketSize)
+				sendPacket();
+			encodeBlock(mBlock, 0, mBlockLength, mPacket);
+			mBlockLength = 0;
+		}
+
+		private void sendPacket() throws IOException {
+			try {
+				mConnection.send(mPacket);
+			} finally {
+				mPacket.reset();
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import de.uos.nbp.senhance.bluetooth.PacketConnection.Packet;
+import de.uos.nbp.senhance.bluetooth.PacketConnection.State;
+
+/**
+ * Frames packets with a start and an end byte, escaping those values
+ * (and the escape byte itself) inside the packet. After an escape byte
+ * the data byte is optionally XORed with the octet stuff byte, so that
+ * the frame bytes never appear unescaped. This is the framing of the
+ * Corscience devices and the default of {@link FramedPacketConnection}.
+ *
+ * If there is no end byte, a frame ends at the start byte of the next one.
+ */
+public class EscapeFramer extends AbstractFramer {
+	private final int mStartByte;
+	private final int mEndByte;
+	private final int mEscapeByte;
+	private final int mOctetStuffByte;
+
+	/** true for every byte value that has to be escaped when sending */
+	private final boolean[] mEscapeTable = new boolean[256];
+	/** value escaped bytes are XORed with, 0 if octet stuffing is disabled */
+	private final byte mStuffXor;
+
+	/** Ready, Incoming or EscapeSequence */
+	private State mState = State.Ready;
+
+	/**
+	 * @param startByte the byte designating the start of a packet
+	 * @param endByte the byte designing the end of the packet (-1 if the next start byte ends it)
+	 * @param escapeByte indicates that following character must be treated separately (-1 disables)
+	 * @param octetStuffByte the byte used to stuff and unstuff a byte after it is escaped (-1 disables)
+	 */
+	public EscapeFramer(int startByte, int endByte, int escapeByte, int octetStuffByte) {
+		mStartByte = startByte;
+		mEndByte = endByte;
+		mEscapeByte = escapeByte;
+		mOctetStuffByte = octetStuffByte;
+		mStuffXor = (octetStuffByte == -1) ? 0 : (byte) octetStuffByte;
+		for (int bb = 0; bb < 256; bb++) {
+			mEscapeTable[bb] = ((bb == startByte) ||
+					(bb == endByte) ||
+					(bb == escapeByte));
+		}
+	}
+
+	public EscapeFramer() {
+		this(PacketConnection.DefStartByte, PacketConnection.DefEndByte,
+				PacketConnection.DefEscapeByte, PacketConnection.DefOctetStuffByte);
+	}
+
+	/**
+	 * @param bb
+	 * @return true if the byte must be escaped
+	 */
+	public boolean needsEscaping(int bb) {
+		return mEscapeTable[0xFF & bb];
+	}
+
+	@Override
+	public int maxEncodedLength(int payloadLength) {
+		return 2*(payloadLength + getTrailerSize()) + 2;
+	}
+
+	/**
+	 * Runs the escape state machine over the bytes. Between frames the
+	 * bytes are skipped up to the next start byte in one go. An unescaped
+	 * start byte inside a frame means the frame's end byte was lost: the
+	 * frame is dropped and the new one started, so the framer recovers
+	 * within one frame.
+	 */
+	@Override
+	public void decode(byte[] data, int offset, int length, Sink sink) {
+		final int end = offset + length;
+		int ii = offset;
+		while (ii < end) {
+			if (mState == State.Ready) {
+				/* hunt for the next start byte */
+				while ((ii < end) && ((data[ii] & 0xFF) != mStartByte))
+					ii++;
+				if (ii == end)
+					break;
+				ii++;
+				beginFrame(sink);
+				mState = State.Incoming;
+				continue;
+			}
+			int nextByte = data[ii++] & 0xFF;
+			if (mState == State.EscapeSequence) {
+				if (mOctetStuffByte != -1) {
+					/* Apply octet unstuffing */
+					nextByte ^= mOctetStuffByte;
+				}
+				mState = receiveByte(sink, nextByte) ? State.Incoming : State.Ready;
+			} else if ((mEscapeByte!=-1) && (nextByte == mEscapeByte)) {
+				mState = State.EscapeSequence;
+			// There are two possibilities when a package can be closed:
+			// 1.) We have a defined endByte and we encounter it here
+			// 2.) endByte is undefined, but we encounter the startByte again.
+			} else if ((mEndByte != -1) && (nextByte == mEndByte)) {
+				endFrame(sink);
+				mState = State.Ready;
+			} else if ((nextByte == mStartByte) && ((mEndByte == -1) || (mEscapeByte != -1))) {
+				if (mEndByte == -1)
+					endFrame(sink);
+				else
+					dropFrame(sink, DROP_MALFORMED);
+				beginFrame(sink);
+			} else if (!receiveByte(sink, nextByte)) {
+				/* too long: skip to the next start byte */
+				mState = State.Ready;
+			}
+		}
+	}
+
+	@Override
+	public int encode(Packet pkt, byte[] out, int offset) {
+		final byte[] data = pkt.mData;
+		final int length = pkt.getLength();
+		final boolean[] escapeTable = mEscapeTable;
+		int pos = offset;
+
+		out[pos++] = (byte) mStartByte;
+		/* search for bytes requiring escaping... */
+		for (int idx = 0; idx < length; idx++) {
+			final byte bb = data[idx];
+			if (escapeTable[bb & 0xFF]) {
+				out[pos++] = (byte) mEscapeByte;
+				/*... followed by the massaged data */
+				out[pos++] = (byte) (bb ^ mStuffXor);
+			} else {
+				out[pos++] = bb;
+			}
+		}
+
+		/* the trailer is escaped like the payload */
+		final int trailer = getTrailerSize();
+		if (trailer > 0) {
+			final int crc = computeCrc(pkt);
+			for (int ii = 0; ii < trailer; ii++) {
+				final byte bb = (byte) trailerByte(crc, ii);
+				if (escapeTable[bb & 0xFF]) {
+					out[pos++] = (byte) mEscapeByte;
+					out[pos++] = (byte) (bb ^ mStuffXor);
+				} else {
+					out[pos++] = bb;
+				}
+			}
+		}
+
+		/* finally, the end byte (if there is none, the next start byte ends the frame) */
+		if (mEndByte != -1)
+			out[pos++] = (byte) mEndByte;
+
+		return pos;
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		mState = State.Ready;
+	}
+}
@@ -1,35 +1,72 @@
 package de.uos.nbp.senhance.bluetooth;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
-import android.os.SystemClock;
 import android.util.Log;
 import de.uos.nbp.Utils;
 
 /**
  * This can be used to maintain a bluetooth
  * connection that is packet-based. It allows sending and receiving of
- * packets and implements escaping (octet stuffing).
- * 
- * It implements a state machine as dictated
- * by {@link PacketConnection}.
- * 
- * The entire packet can be retrieved in one blocking
- * call to receive(), or it can be retrieve one byte at a time
- * with read().
- * 
+ * packets, framed by a {@link Framer}: by default escaping (octet
+ * stuffing), alternatively Consistent Overhead Byte Stuffing or a length
+ * prefix, see {@link Framing}, or any other implementation.
+ *
+ * Received data is passed to the framer either one chunk at a time
+ * (the default) or one byte at a time, see
+ * {@link BluetoothService#setReceiveMode(int)}; completed packets are
+ * passed to {@link PacketConnectionHandler#packetReceived(Packet)}.
+ *
+ * Optionally a CRC trailer is appended to every frame and checked on
+ * receipt, see {@link #setCrcMode(int)}; frames that fail the check or
+ * are otherwise unusable are dropped and counted, see {@link #getDropCount(int)}.
+ *
  * @author rmuil
  * November 18, 2011
  */
-public class FramedPacketConnection extends BluetoothPacketConnection {
-	private final int mStartByte;
-	private final int mEndByte;
-	private final int mEscapeByte;
-	private final int mOctetStuffByte;
-	
-	/**
-	 * 
+public class FramedPacketConnection extends BluetoothPacketConnection implements Framer.Sink {
+
+	/** The framings built in, see {@link FramedPacketConnection#createFramer(Framing)} */
+	public enum Framing {
+		/** start and end bytes, with those values escaped inside the packet (the default), see {@link EscapeFramer} */
+		Escape,
+		/** Consistent Overhead Byte Stuffing, frames end with 0x00, see {@link CobsFramer} */
+		Cobs,
+		/** start byte, length and header check, followed by the unescaped payload, see {@link LengthPrefixedFramer} */
+		LengthPrefixed
+	}
+
+	private final Framer mFramer;
+	/** frames are encoded into this, grown if a packet needs more */
+	private byte[] mSendBuffer;
+	/** holds the byte passed to readByte for the framer */
+	private final byte[] mSingleByte = new byte[1];
+	/** NB: written by the decoding thread only, so other threads may see stale counts */
+	private final int[] mDropCounts = new int[Framer.DROP_REASONS];
+
+	/**
+	 *
+	 * @param address Bluetooth MAC address that will be connected to
+	 * @param maxPacketSize this is the size of the maximum expected packet on this connection
+	 * @param framer splits the received bytes into packets and frames the packets sent; used by this connection only
+	 * @param connectRetries The amount of times that attemps to (re)connect should be made
+	 * @param timeBetweenConnectionAttemps The time between two connection attemps (in ms)
+	 */
+	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize, Framer framer,
+			int connectRetries, int timeBetweenConnectionAttemps) {
+		super(address, connHandler, maxPacketSize, connectRetries, timeBetweenConnectionAttemps);
+		mFramer = framer;
+		/* received packets hold the trailer until the frame is checked */
+		mPacketPool.setCapacityLimit(maxPacketSize + framer.getTrailerSize());
+		mSendBuffer = new byte[framer.maxEncodedLength(maxPacketSize)];
+	}
+
+	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize, Framer framer) {
+		this(address, connHandler, maxPacketSize, framer, 3, 1000);
+	}
+
+	/**
+	 *
 	 * @param address Bluetooth MAC address that will be connected to
 	 * @param maxPacketSize this is the size of the maximum expected packet on this connection
 	 * @param octetStuffByte the byte used to stuff and unstuff a byte after it is escaped (-1 disables)
@@ -38,33 +75,43 @@ public class FramedPacketConnection extends BluetoothPacketConnection {
 	 * @param escapeByte indicates that following character must be treated separately (e.g. octet stuffing)
 	 * @param connectRetries The amount of times that attemps to (re)connect should be made
 	 * @param timeBetweenConnectionAttemps The time between two connection attemps (in ms)
+	 * @param framing how packets are delimited; the end, escape and stuff bytes only apply to {@link Framing#Escape}
 	 */
-	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize, 
+	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize,
+			int octetStuffByte, int startByte, int endByte, int escapeByte, int connectRetries, int timeBetweenConnectionAttemps,
+			Framing framing) {
+		this(address, connHandler, maxPacketSize, createFramer(framing, octetStuffByte, startByte, endByte, escapeByte),
+				connectRetries, timeBetweenConnectionAttemps);
+	}
+
+	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize,
 			int octetStuffByte, int startByte, int endByte, int escapeByte, int connectRetries, int timeBetweenConnectionAttemps) {
-		super(address, connHandler, maxPacketSize, connectRetries, timeBetweenConnectionAttemps);
-		mOctetStuffByte = octetStuffByte;
-		mStartByte = startByte;
-		mEndByte = endByte;
-		mEscapeByte = escapeByte;
+		this(address, connHandler, maxPacketSize, octetStuffByte, startByte, endByte, escapeByte,
+				connectRetries, timeBetweenConnectionAttemps, Framing.Escape);
+	}
+
+	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize, Framing framing,
+			int connectRetries, int timeBetweenConnectionAttemps) {
+		this(address, connHandler, maxPacketSize, createFramer(framing), connectRetries, timeBetweenConnectionAttemps);
+	}
+
+	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize, Framing framing) {
+		this(address, connHandler, maxPacketSize, framing, 3, 1000);
 	}
-	
-	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize, 
+
+	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize,
 			int octetStuffByte, int startByte, int endByte, int escapeByte) {
-		super(address, connHandler, maxPacketSize, 3, 1000);
-		mOctetStuffByte = octetStuffByte;
-		mStartByte = startByte;
-		mEndByte = endByte;
-		mEscapeByte = escapeByte;
+		this(address, connHandler, maxPacketSize, octetStuffByte, startByte, endByte, escapeByte, 3, 1000);
 	}
-	
+
 	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize, int octetStuffByte) {
 		this(address, connHandler, maxPacketSize, octetStuffByte, DefStartByte, DefEndByte, DefEscapeByte);
 	}
-	
+
 	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize, int connectRetries, int timeBetweenConnectionAttemps) {
 		this(address, connHandler, maxPacketSize, DefOctetStuffByte, DefStartByte, DefEndByte, DefEscapeByte, connectRetries, timeBetweenConnectionAttemps);
 	}
-	
+
 	public FramedPacketConnection (String address, PacketConnectionHandler connHandler, int maxPacketSize) {
 		this(address, connHandler, maxPacketSize, DefOctetStuffByte, DefStartByte, DefEndByte, DefEscapeByte);
 	}
@@ -72,129 +119,193 @@ public class FramedPacketConnection extends BluetoothPacketConnection {
 		this(address, connHandler, DefMaxPacketSize, DefOctetStuffByte, DefStartByte, DefEndByte, DefEscapeByte);
 	}
 
+	/**
+	 * @param framing
+	 * @param octetStuffByte only used by {@link Framing#Escape}
+	 * @param startByte not used by {@link Framing#Cobs}
+	 * @param endByte only used by {@link Framing#Escape}
+	 * @param escapeByte only used by {@link Framing#Escape}
+	 * @return a new framer of the given kind
+	 */
+	public static Framer createFramer(Framing framing, int octetStuffByte, int startByte, int endByte, int escapeByte) {
+		switch (framing) {
+		case Cobs:
+			return new CobsFramer();
+		case LengthPrefixed:
+			return new LengthPrefixedFramer(startByte, true);
+		default:
+			return new EscapeFramer(startByte, endByte, escapeByte, octetStuffByte);
+		}
+	}
+
+	/**
+	 * @return a new framer of the given kind with the default bytes
+	 */
+	public static Framer createFramer(Framing framing) {
+		return createFramer(framing, DefOctetStuffByte, DefStartByte, DefEndByte, DefEscapeByte);
+	}
+
 	/**
 	 * Simply determines if a given byte would
 	 * need escaping, given the current connection's
 	 * flags.
 	 * @param bb
-	 * @return true if the byte must be escaped
+	 * @return true if the byte must be escaped; always false unless the framer is an {@link EscapeFramer}
 	 */
 	public boolean needsEscaping(int bb) {
-		return (((0xFF & bb) == mStartByte) ||
-				((0xFF & bb) == mEndByte) ||
-				((0xFF & bb) == mEscapeByte));
+		return (mFramer instanceof EscapeFramer) && ((EscapeFramer) mFramer).needsEscaping(bb);
+	}
+
+	public Framer getFramer() {
+		return mFramer;
+	}
+
+	/**
+	 * Selects the integrity check appended to sent frames and expected
+	 * on received ones. Both ends must use the same mode. Must be set
+	 * before connecting.
+	 * @param crcMode {@link AbstractFramer#CRC_NONE}, {@link AbstractFramer#CRC_16} or {@link AbstractFramer#CRC_32}
+	 * @throws IllegalStateException if the framer is not an {@link AbstractFramer}
+	 */
+	public void setCrcMode(int crcMode) {
+		if (!(mFramer instanceof AbstractFramer))
+			throw new IllegalStateException("Framer does not support CRC trailers");
+		((AbstractFramer) mFramer).setCrcMode(crcMode);
+		mPacketPool.setCapacityLimit(mMaxPacketSize + mFramer.getTrailerSize());
+		requestReset();
+	}
+
+	public int getCrcMode() {
+		return (mFramer instanceof AbstractFramer) ? ((AbstractFramer) mFramer).getCrcMode() : AbstractFramer.CRC_NONE;
+	}
+
+	/**
+	 * @param reason one of the Framer.DROP_ constants
+	 * @return the number of received frames dropped for the given reason
+	 */
+	public int getDropCount(int reason) {
+		return mDropCounts[reason];
+	}
+
+	/**
+	 * @return the number of received frames dropped because their CRC did not match
+	 */
+	public int getCrcErrorCount() {
+		return getDropCount(Framer.DROP_CRC);
 	}
-	
+
 	/**
-	 * Processes the next byte and adds it to the current packet
+	 * Passes the next byte to the framer.
 	 * @param nextByte
-	 * @throws IOException
-	 * @throws ArrayIndexOutOfBoundsException
 	 */
 	@Override
 	protected void readByte (int nextByte){
 		//NB: the return from InputStream.read() is actually
 		//an 'int' and varies from 0 to 255. 'byte' is signed
 		//and varies from -128 to 127.
-		
-//		try {
-			if (D) Log.v(TAG, "FramedPacketConnection|read(): "+Integer.toHexString(nextByte));
-			switch (mState) {
-			case Ready:
-				if (nextByte == mStartByte) {
-					mPacket.mStartTime = System.currentTimeMillis();
-					mPacket.packetStartMillis = SystemClock.elapsedRealtime();
-					changeState(State.Incoming);
-				}
-				break;
-			case Incoming:
-				if ((mEscapeByte!=-1) && (nextByte == mEscapeByte)) {
-					changeState(State.EscapeSequence);
-				// There are two possibilities when a package can be closed: 
-				// 1.) We have a defined endByte and we encounter it here
-				// 2.) endByte is undefined, but we encounter the startByte again. 
-				} else if (((mEndByte != -1) && (nextByte == mEndByte)) ||
-				       ((mEndByte == -1) && (nextByte == mStartByte))) {
-					mPacket.mEndTime = System.currentTimeMillis();
-					mPacket.packetEndMillis = SystemClock.elapsedRealtime();
-					changeState(State.PacketReceived);
-					if (D) {
-						Log.d(TAG, "FramedPacketConnection|got packet of length "
-								+Integer.toString(mPacket.getDataPosition()));
-						Log.v(TAG, " -> [" + Utils.ByteArrayToHexa(mPacket.mData, 0, mPacket.getDataPosition()) + "]");
-					}
-				} else { 
-					mPacket.appendByte(nextByte);
-				}
-				
-				break;
-			case EscapeSequence:
-				if (mOctetStuffByte != -1) {
-					/* Apply octet unstuffing */
-					nextByte ^= mOctetStuffByte;
-				}
-				mPacket.appendByte(nextByte);
-				changeState(State.Incoming);
-				break;
-			}
-			
-			if (mState == State.PacketReceived){
-				Packet receivedPacket = mPacket;
-				receivedPacket.mPosition = 0;
-				mConnHandler.packetReceived(receivedPacket);
-				mPacket = new Packet(mMaxPacketSize);
-				// In case there is no defined endByte, we wouldn't have gotten here
-				// if there hadn't been another packet onset. Therefore create new packet
-				// and change state to incoming. 
-				if (mEndByte == -1) {
-					mPacket.mStartTime = System.currentTimeMillis();
-					mPacket.packetStartMillis = SystemClock.elapsedRealtime();
-					changeState(State.Incoming);
-				} else {
-					changeState(State.Ready);
-				}
-			}
-//		} catch (ArrayIndexOutOfBoundsException e) {
-//			Log.e(TAG, "Packet arrived that was bigger than FramedPacketConnection buffer. Discarded.");
-//			discard();
-//		}
-	}
-	
-	/**
-	 * This performs necessary escaping on the data, surrounds
-	 * it with start and end flags, and sends it to the output
-	 * stream.
-	 * 
+		if (D) Log.v(TAG, "FramedPacketConnection|read(): "+Integer.toHexString(nextByte));
+		mSingleByte[0] = (byte) nextByte;
+		mFramer.decode(mSingleByte, 0, 1, this);
+	}
+
+	/**
+	 * Passes the whole chunk to the framer.
+	 */
+	@Override
+	protected void readChunk (ReceiveChunk chunk) {
+		mReceiveTime = chunk.mReceiveTime;
+		mReceiveMillis = chunk.mReceiveMillis;
+		mFramer.decode(chunk.mData, chunk.mOffset, chunk.mLength, this);
+	}
+
+	/**
+	 * Called by the framer when a frame starts.
+	 */
+	@Override
+	public Packet obtainPacket() {
+		Packet pkt = mPacketPool.obtain();
+		pkt.mStartTime = mReceiveTime;
+		pkt.packetStartMillis = mReceiveMillis;
+		return pkt;
+	}
+
+	/**
+	 * Called by the framer with a complete packet.
+	 */
+	@Override
+	public void frameReceived(Packet pkt) {
+		pkt.mEndTime = mReceiveTime;
+		pkt.packetEndMillis = mReceiveMillis;
+		if (D) {
+			Log.d(TAG, "FramedPacketConnection|got packet of length "
+					+Integer.toString(pkt.getLength()));
+			Log.v(TAG, " -> [" + Utils.ByteArrayToHexa(pkt.mData, 0, pkt.getLength()) + "]");
+		}
+		deliverPacket(pkt);
+	}
+
+	/**
+	 * Called by the framer when a frame is discarded.
+	 */
+	@Override
+	public void frameDropped(int reason) {
+		mDropCounts[reason]++;
+		if (reason == Framer.DROP_OVERSIZE)
+			Log.e(TAG, "Packet arrived that was bigger than FramedPacketConnection buffer. Discarded.");
+		else if (D)
+			Log.d(TAG, "FramedPacketConnection|frame dropped, reason "+reason);
+	}
+
+	/**
+	 * Forgets any partially received frame.
+	 */
+	@Override
+	protected void resetPacket() {
+		mFramer.reset();
+	}
+
+	/**
+	 * This frames the packet, e.g. performs necessary escaping on the
+	 * data and surrounds it with start and end flags, and sends it to
+	 * the output stream.
+	 *
+	 * Only the valid bytes of the packet ({@link Packet#getLength()})
+	 * are sent, followed by the CRC trailer if one is enabled. The frame
+	 * is built in a buffer that is reused for every send, so concurrent
+	 * sends are serialised.
+	 *
 	 * NB: socket is not checked for validity - it is the caller's
 	 * responsibility to ensure the connection is Connected before
 	 * calling this.
 	 */
 	@Override
-	public void send(Packet pkt) throws IOException {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		
+	public synchronized void send(Packet pkt) throws IOException {
 		if (D) Log.v(TAG, "FramedPacketConnection.send()");
-		out.write(mStartByte);
-		/* search for bytes requiring escaping... */
-		for (int idx = 0; idx < pkt.mData.length; idx++) {
-			if (needsEscaping(pkt.mData[idx])) {
-				out.write(mEscapeByte);
-				int escapedByte = pkt.mData[idx];
-				if (mOctetStuffByte != -1)
-					escapedByte ^= mOctetStuffByte;
-				/*... followed by the massaged data */
-				out.write(escapedByte);
-			} else {
-				out.write(pkt.mData[idx]);
-			}
-		}
-		
-		/* finally, send the end byte */
-		out.write(mEndByte);
-		
-		byte[] bytes = out.toByteArray();
-		mBluetoothService.write(bytes);
+		int length = encode(pkt);
+		mBluetoothService.write(mSendBuffer, 0, length);
+	}
 
+	/**
+	 * Frames the packet as for {@link #send(Packet)} and hands it to the
+	 * socket without blocking, see {@link PacketConnection#sendAsync(Packet, SendCallback)}.
+	 */
+	@Override
+	public synchronized void sendAsync(Packet pkt, SendCallback callback) {
+		if (D) Log.v(TAG, "FramedPacketConnection.sendAsync()");
+		int length = encode(pkt);
+		mBluetoothService.write(mSendBuffer, 0, length, pkt, callback);
 	}
-	
-}
\ No newline at end of file
+
+	/**
+	 * Encodes the packet as a frame into mSendBuffer.
+	 * @param pkt
+	 * @return the length of the frame
+	 */
+	private int encode(Packet pkt) {
+		final int frameLength = mFramer.maxEncodedLength(pkt.getLength());
+		if (mSendBuffer.length < frameLength)
+			mSendBuffer = new byte[frameLength];
+		return mFramer.encode(pkt, mSendBuffer, 0);
+	}
+
+}
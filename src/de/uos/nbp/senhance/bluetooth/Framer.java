@@ -0,0 +1,87 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import de.uos.nbp.senhance.bluetooth.PacketConnection.Packet;
+
+/**
+ * Splits a byte stream into packets and packets into frames.
+ *
+ * A framer knows nothing about sockets, threads or Android: received bytes
+ * are passed to {@link #decode(byte[], int, int, Sink)} as they arrive, in
+ * blocks of any size, and completed packets come out at the {@link Sink}.
+ * It can therefore be used with any transport and tested on a plain JVM.
+ *
+ * Decoding keeps state between calls, so one framer instance serves one
+ * stream and must not be shared by connections. Encoding does not touch
+ * the decoding state, but frames must not be encoded concurrently.
+ */
+public interface Framer {
+	/** The frame failed its CRC check */
+	static final int DROP_CRC = 0;
+	/** The frame's header was rejected */
+	static final int DROP_HEADER = 1;
+	/** The frame was cut short, e.g. a new frame started before it ended, or is otherwise not well formed */
+	static final int DROP_MALFORMED = 2;
+	/** The frame exceeded the capacity limit of its packet */
+	static final int DROP_OVERSIZE = 3;
+	/** Number of drop reasons */
+	static final int DROP_REASONS = 4;
+
+	/**
+	 * Receives the results of decoding.
+	 */
+	interface Sink {
+		/**
+		 * Called when a frame starts.
+		 * @return an empty packet to decode the frame into, its capacity
+		 * limit bounds the size of the frame
+		 */
+		Packet obtainPacket();
+
+		/**
+		 * Called with a complete packet, which now belongs to the sink.
+		 * The packet's position is 0.
+		 */
+		void frameReceived(Packet pkt);
+
+		/**
+		 * Called when a frame is discarded. Its packet has been released.
+		 * @param reason one of the DROP_ constants
+		 */
+		void frameDropped(int reason);
+	}
+
+	/**
+	 * Decodes a block of received bytes.
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param sink where packets are obtained and delivered
+	 */
+	void decode(byte[] data, int offset, int length, Sink sink);
+
+	/**
+	 * Encodes the valid bytes of the packet as one frame.
+	 * @param pkt
+	 * @param out must hold {@link #maxEncodedLength(int)} bytes from offset
+	 * @param offset
+	 * @return the index after the frame
+	 */
+	int encode(Packet pkt, byte[] out, int offset);
+
+	/**
+	 * @param payloadLength
+	 * @return the size of the largest frame a payload of the given length can produce
+	 */
+	int maxEncodedLength(int payloadLength);
+
+	/**
+	 * @return the bytes a received packet needs beyond its payload while
+	 * the frame is decoded, e.g. for a CRC trailer
+	 */
+	int getTrailerSize();
+
+	/**
+	 * Forgets any partial frame, e.g. after reconnecting.
+	 */
+	void reset();
+}
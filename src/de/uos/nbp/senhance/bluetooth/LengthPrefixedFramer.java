@@ -0,0 +1,149 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import de.uos.nbp.senhance.bluetooth.PacketConnection.Packet;
+
+/**
+ * Frames packets as a start byte, a 2-byte little-endian length of the
+ * rest of the frame and, optionally, a CRC-8 of the length, followed by
+ * the payload as is. Nothing is escaped, so the payload is copied in
+ * bulk on both ends; for devices that implement it on both ends.
+ *
+ * The start byte may appear in the payload, so the decoder relies on the
+ * header to find frames. A header is rejected if its check fails or its
+ * length exceeds the packet's capacity limit, so the payload of a frame is
+ * never buffered beyond the connection's budget; the bytes after its start
+ * byte are then scanned again for the next start byte, so a false start
+ * costs at most the header rather than a whole frame.
+ */
+public class LengthPrefixedFramer extends AbstractFramer {
+	private final int mStartByte;
+	private final boolean mHeaderCheck;
+	private final int mHeaderSize;
+
+	/** header of the frame being received, starting with the start byte; 0 when hunting */
+	private final byte[] mHeader = new byte[4];
+	private int mHeaderLength = 0;
+	/** bytes (including trailer) still to come in the current frame */
+	private int mFrameRemaining = 0;
+
+	/**
+	 * @param startByte the byte designating the start of a packet
+	 * @param headerCheck whether the header carries a CRC-8 of the length;
+	 * without it a corrupted length is only noticed if it is too large or
+	 * the CRC trailer fails. Both ends must agree.
+	 */
+	public LengthPrefixedFramer(int startByte, boolean headerCheck) {
+		mStartByte = startByte;
+		mHeaderCheck = headerCheck;
+		mHeaderSize = headerCheck ? 4 : 3;
+	}
+
+	public LengthPrefixedFramer() {
+		this(PacketConnection.DefStartByte, true);
+	}
+
+	public boolean getHeaderCheck() {
+		return mHeaderCheck;
+	}
+
+	@Override
+	public int maxEncodedLength(int payloadLength) {
+		return mHeaderSize + payloadLength + getTrailerSize();
+	}
+
+	@Override
+	public void decode(byte[] data, int offset, int length, Sink sink) {
+		final int end = offset + length;
+		int pos = offset;
+		while (pos < end) {
+			if (mHeaderLength == 0) {
+				while ((pos < end) && ((data[pos] & 0xFF) != mStartByte))
+					pos++;
+				if (pos == end)
+					break;
+				mHeader[0] = data[pos++];
+				mHeaderLength = 1;
+				beginFrame(sink);
+			} else if (mHeaderLength < mHeaderSize) {
+				mHeader[mHeaderLength++] = data[pos++];
+				if (mHeaderLength == mHeaderSize)
+					checkHeader(sink);
+			} else {
+				final int count = Math.min(mFrameRemaining, end - pos);
+				receiveBytes(data, pos, count);
+				pos += count;
+				mFrameRemaining -= count;
+				if (mFrameRemaining == 0) {
+					mHeaderLength = 0;
+					endFrame(sink);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Validates the complete header in mHeader, resynchronising if it is bad.
+	 */
+	private void checkHeader(Sink sink) {
+		final int frameLength = (mHeader[1] & 0xFF) | ((mHeader[2] & 0xFF) << 8);
+		final boolean checked = !mHeaderCheck
+				|| ((mHeader[3] & 0xFF) == headerCrc(mHeader[1], mHeader[2]));
+		if (checked && (frameLength <= getFrameLimit())) {
+			mFrameRemaining = frameLength;
+			if (frameLength == 0) {
+				mHeaderLength = 0;
+				endFrame(sink);
+			}
+			return;
+		}
+		/* an intact header of a frame beyond the budget is skipped like a bad one */
+		dropFrame(sink, checked ? DROP_OVERSIZE : DROP_HEADER);
+		for (int ii = 1; ii < mHeaderSize; ii++) {
+			if ((mHeader[ii] & 0xFF) == mStartByte) {
+				System.arraycopy(mHeader, ii, mHeader, 0, mHeaderSize - ii);
+				mHeaderLength = mHeaderSize - ii;
+				beginFrame(sink);
+				return;
+			}
+		}
+		mHeaderLength = 0;
+	}
+
+	private static int headerCrc(byte lengthLow, byte lengthHigh) {
+		return Crc.update8(Crc.update8(Crc.Crc8Init, lengthLow), lengthHigh);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the packet is too long for the length field
+	 */
+	@Override
+	public int encode(Packet pkt, byte[] out, int offset) {
+		final int length = pkt.getLength();
+		final int trailer = getTrailerSize();
+		final int frameLength = length + trailer;
+		if (frameLength > 0xFFFF)
+			throw new IllegalArgumentException("Packet of "+length+" bytes too long for length-prefixed framing");
+		int pos = offset;
+
+		out[pos++] = (byte) mStartByte;
+		out[pos++] = (byte) frameLength;
+		out[pos++] = (byte) (frameLength >>> 8);
+		if (mHeaderCheck)
+			out[pos++] = (byte) headerCrc((byte) frameLength, (byte) (frameLength >>> 8));
+		System.arraycopy(pkt.mData, 0, out, pos, length);
+		pos += length;
+		if (trailer > 0) {
+			final int crc = computeCrc(pkt);
+			for (int ii = 0; ii < trailer; ii++)
+				out[pos++] = (byte) trailerByte(crc, ii);
+		}
+		return pos;
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		mHeaderLength = 0;
+		mFrameRemaining = 0;
+	}
+}
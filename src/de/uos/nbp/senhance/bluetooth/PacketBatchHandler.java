@@ -0,0 +1,23 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.util.List;
+
+import de.uos.nbp.senhance.bluetooth.PacketConnection.Packet;
+
+/**
+ * A PacketConnectionHandler that can also take received packets
+ * in batches, see {@link BluetoothPacketConnection#setBatchDelivery(long)}.
+ */
+public interface PacketBatchHandler extends PacketConnectionHandler {
+
+	/**
+	 * Called with all packets received since the last call, oldest first,
+	 * instead of one {@link #packetReceived(Packet)} call per packet.
+	 * 
+	 * The list itself is reused for the next batch and must not be kept or
+	 * modified; the packets in it belong to the handler exactly as if they
+	 * had been passed to packetReceived().
+	 * @param receivedPackets never empty
+	 */
+	void packetsReceived(List<Packet> receivedPackets);
+}
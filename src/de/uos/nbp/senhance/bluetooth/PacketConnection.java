@@ -2,8 +2,6 @@ package de.uos.nbp.senhance.bluetooth;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.UUID;
 
@@ -53,6 +51,14 @@ public interface PacketConnection {
 		Dead
 	}
 	
+	/** String encodings of {@link Packet#putString(String, int)} and friends */
+	enum StringEncoding {
+		/** int giving the number of chars, followed by 2 bytes per char (the default) */
+		Chars,
+		/** unsigned short giving the number of bytes, followed by UTF-8 */
+		Utf8
+	}
+	
 	/**
 	 * Packet is similar to a ByteBuffer in that it maintains a backing byte
 	 * array and allows reading and writing from it. However, Packet supports
@@ -71,6 +77,9 @@ public interface PacketConnection {
 		/** only affects the getter functions. */
 		protected boolean mLittleEndian;
 		
+		/** how the putString/getString family encodes strings */
+		protected StringEncoding mStringEncoding = StringEncoding.Chars;
+		
 		
 		/** time in milliseconds since Unix epoch of start of packet reception, in Android time */
 		long mStartTime;
@@ -96,6 +105,20 @@ public interface PacketConnection {
 		/** This points to the element one past where data has been placed */
 		protected int mPosition = 0;
 		
+		/** Number of valid bytes in mData, i.e. one past the furthest byte written */
+		protected int mLength = 0;
+		
+		/** mData is never grown beyond this many bytes */
+		protected int mCapacityLimit = Integer.MAX_VALUE;
+		
+		/** The pool this packet returns to on {@link #release()}, if any */
+		PacketPool mPool;
+		/** true while the packet sits idle in its pool */
+		boolean mInPool;
+		
+		/** Position after the varint last decoded by readVarLong() */
+		private int mVarEnd;
+		
 		/////
 		// Constructors
 		/////
@@ -119,8 +142,11 @@ public interface PacketConnection {
 		 */
 		protected Packet(Packet pkt) {
 			this.mLittleEndian= pkt.mLittleEndian;
+			this.mStringEncoding = pkt.mStringEncoding;
 			this.mData = pkt.mData.clone();
 			this.mPosition = pkt.mPosition;
+			this.mLength = pkt.mLength;
+			this.mCapacityLimit = pkt.mCapacityLimit;
 			this.mStartTime = pkt.mStartTime;
 			this.mEndTime = pkt.mEndTime;
 			this.packetStartMillis = pkt.packetStartMillis;
@@ -134,12 +160,104 @@ public interface PacketConnection {
 		public Packet(byte[] data) {
 			mData = data;
 			mPosition = data.length;
+			mLength = data.length;
 			mLittleEndian = true;
 		}
 		
 		public int getDataPosition() {
 			return mPosition;
 		}
+
+		/**
+		 * Moves the position used by the append and pop functions, e.g. to
+		 * 0 to pop the contents of a received packet from the start.
+		 * @param pos between 0 and the packet's length
+		 */
+		public void setDataPosition(int pos) {
+			if ((pos < 0) || (pos > mLength))
+				throw new ArrayIndexOutOfBoundsException("position "+pos+" outside packet of length "+mLength);
+			mPosition = pos;
+		}
+
+		/**
+		 * Returns the number of valid bytes in the packet, that is the
+		 * bytes that were received or have been written with any of the
+		 * put or append functions. Only these are sent.
+		 * @return length of the payload
+		 */
+		public int getLength() {
+			return mLength;
+		}
+		
+		/**
+		 * Returns the size of the backing array, i.e. how many bytes
+		 * the packet can hold before it has to grow.
+		 */
+		public int getCapacity() {
+			return mData.length;
+		}
+		
+		/**
+		 * Makes sure the packet can hold at least {@value minCapacity} bytes
+		 * without growing again. The backing array grows geometrically (by
+		 * at least half its size), so appending n bytes one at a time costs
+		 * O(n) overall, but never beyond the capacity limit.
+		 * @param minCapacity
+		 * @throws ArrayIndexOutOfBoundsException if minCapacity exceeds the capacity limit
+		 */
+		public void ensureCapacity(int minCapacity) {
+			if (minCapacity <= mData.length)
+				return;
+			if (minCapacity > mCapacityLimit)
+				throw new ArrayIndexOutOfBoundsException("Packet of "+minCapacity
+						+" bytes exceeds capacity limit of "+mCapacityLimit);
+			int newCapacity = mData.length + (mData.length >> 1) + 1;
+			if ((newCapacity < minCapacity) || (newCapacity < 0)) /* < 0: overflow */
+				newCapacity = minCapacity;
+			if (newCapacity > mCapacityLimit)
+				newCapacity = mCapacityLimit;
+			byte[] cop = new byte[newCapacity];
+			System.arraycopy(mData, 0, cop, 0, mData.length);
+			mData = cop;
+		}
+		
+		/**
+		 * Shrinks the backing array to the valid length of the packet.
+		 */
+		public void trimToSize() {
+			if (mLength < mData.length) {
+				byte[] cop = new byte[mLength];
+				System.arraycopy(mData, 0, cop, 0, mLength);
+				mData = cop;
+			}
+		}
+		
+		/**
+		 * Sets the hard limit on the size of the packet: writing beyond it
+		 * throws ArrayIndexOutOfBoundsException instead of growing the packet.
+		 * Packets delivered by a connection are limited to the connection's
+		 * maximum packet size.
+		 * @param capacityLimit at least the current capacity
+		 */
+		public void setCapacityLimit(int capacityLimit) {
+			if (capacityLimit < mData.length)
+				throw new IllegalArgumentException("capacity limit "+capacityLimit
+						+" below current capacity "+mData.length);
+			mCapacityLimit = capacityLimit;
+		}
+		
+		public int getCapacityLimit() {
+			return mCapacityLimit;
+		}
+		
+		/**
+		 * Extends the valid length to cover everything up to {@value end}.
+		 * @param end one past the last byte written
+		 */
+		protected void markWritten(int end) {
+			if (end > mLength)
+				mLength = end;
+		}
 		
 		public int getRemainingLength(int pos) {
 			int remainingLength = getDataPosition() - pos;
@@ -170,6 +288,33 @@ public interface PacketConnection {
 		public void setData(byte[] data) {
 			this.mData = data.clone();
 			this.mPosition = data.length;
+			this.mLength = data.length;
+		}
+		
+		/**
+		 * Empties the packet so it can be filled again. The backing
+		 * array is kept.
+		 */
+		public void reset() {
+			mPosition = 0;
+			mLength = 0;
+			mStartTime = 0;
+			mEndTime = 0;
+			packetStartMillis = 0;
+			packetEndMillis = 0;
+		}
+		
+		/**
+		 * Hands a received packet back to the connection that delivered
+		 * it, so its memory can be reused for a later packet. The packet
+		 * must not be used in any way after this call.
+		 * 
+		 * Does nothing for packets that do not come from a {@link PacketPool}.
+		 * @throws IllegalStateException if the packet was already released
+		 */
+		public void release() {
+			if (mPool != null)
+				mPool.recycle(this);
 		}
 		
 		/////
@@ -191,8 +336,9 @@ public interface PacketConnection {
 		 * @throws ArrayIndexOutOfBoundsException
 		 */
 		public void appendByte(int newByte) {
-			if (mPosition>mData.length-1) mData = enlarge_array(mData, 1);
+			if (mPosition>mData.length-1) ensureCapacity(mPosition+1);
 			mData[mPosition++]=(byte)(newByte&0xFF); 
+			markWritten(mPosition);
 		}
 		
 		/**
@@ -203,6 +349,7 @@ public interface PacketConnection {
 		 */
 		public void putByte(int newByte, int pos) throws ArrayIndexOutOfBoundsException {
 			mData[pos]=(byte)(newByte&0xFF);
+			markWritten(pos+1);
 		}
 
 		public byte getByte(int pos){
@@ -243,20 +390,11 @@ public interface PacketConnection {
 		 * @throws ArrayIndexOutOfBoundsException
 		 */
 		public int getUShort(int pos) {
-			int ret;
-			/**
 			if (mLittleEndian) {
-				ret = (mData[pos]&0xFF)+((mData[pos+1]>>>8)&0xFF);
+				return (mData[pos]&0xFF) | ((mData[pos+1]&0xFF)<<8);
 			} else {
-				ret = (mData[pos+1]&0xFF)+((mData[pos]>>>8)&0xFF);
+				return (mData[pos+1]&0xFF) | ((mData[pos]&0xFF)<<8);
 			}
-		    */
-			ByteBuffer bb = ByteBuffer.allocate(2).put(mData[pos]).put(mData[pos+1]);
-			if (mLittleEndian) bb.order(ByteOrder.LITTLE_ENDIAN);
-			else bb.order(ByteOrder.BIG_ENDIAN);
-			short r = bb.getShort(0);
-			ret = r >= 0 ? r : 0x10000 + r;
-			return ret;
 		}
 		
 		/**
@@ -276,6 +414,7 @@ public interface PacketConnection {
 			}
 			if (mPosition < (pos+2))
 				mPosition = pos+2;
+			markWritten(pos+2);
 		}
 		
 		public int popUShort() {
@@ -299,66 +438,371 @@ public interface PacketConnection {
 			return (short) ((((short)mData[MSB]) << 8) | ((short)mData[LSB]) & 0xff);
 		}
 		
+		/**
+		 * Puts a signed 16-bit integer into the buffer.
+		 * @param value
+		 * @param pos
+		 */
+		public void putShort (short value, int pos) {
+			ensureSpace(pos, 2);
+			writeShort(value, pos);
+			markWritten(pos+2);
+		}
+		
+		/**
+		 * Writes the 2 bytes of value at pos, which must be within mData.
+		 */
+		private void writeShort(short value, int pos) {
+			if (mLittleEndian) {
+				mData[pos]   = (byte) value;
+				mData[pos+1] = (byte) (value >>> 8);
+			} else {
+				mData[pos]   = (byte) (value >>> 8);
+				mData[pos+1] = (byte) value;
+			}
+		}
+		
+		public void appendShort(short value) {
+			putShort(value, mPosition);
+			mPosition += 2;
+		}
+		
+		public short popShort() {
+			short out = getShort(mPosition);
+			mPosition += 2;
+			return out;
+		}
+		
 		
 		////
 		// Strings
 		////
 
+		/**
+		 * Reads a string in the packet's string encoding, see
+		 * {@link #setStringEncoding(StringEncoding)}.
+		 * @param pos
+		 * @return the decoded string
+		 */
 		public String getString(int pos) {
-			int len = getInt(pos);
-			
-			ByteBuffer bb = ByteBuffer.allocate(len);
-			if (mLittleEndian) bb.order(ByteOrder.LITTLE_ENDIAN);
-			else bb.order(ByteOrder.BIG_ENDIAN);
+			if (mStringEncoding == StringEncoding.Utf8)
+				return getUtf8(pos);
+			return getChars(pos);
+		}
+		
+		/**
+		 * Puts a string in the packet's string encoding.
+		 * @param st
+		 * @param pos
+		 */
+		public void putString(String st, int pos) {
+			putEncodedString(st, pos);
+		}
+		
+		/**
+		 * Like {@link #putString(String, int)}, and tells how much was written.
+		 * @param st
+		 * @param pos
+		 * @return the number of bytes written
+		 */
+		public int putEncodedString(String st, int pos) {
+			if (mStringEncoding == StringEncoding.Utf8)
+				return putUtf8(st, pos);
+			return putChars(st, pos);
+		}
+		
+		public void appendString(String st) {
+			mPosition += putEncodedString(st, mPosition);
+		}
+		
+		public String popString() {
+			if (mStringEncoding == StringEncoding.Utf8)
+				return popUtf8();
+			String out = getChars(mPosition);
+			mPosition+=4; // String length indicator (int)
+			mPosition+=out.length()*2; // Each string char has 2 bytes.
+			return out;
+		}
+		
+		/**
+		 * Sets how {@link #putString(String, int)}, {@link #getString(int)}
+		 * and friends encode strings. Both sides of a connection have to
+		 * agree on it.
+		 * @param encoding
+		 */
+		public void setStringEncoding(StringEncoding encoding) {
+			mStringEncoding = encoding;
+		}
+		
+		public StringEncoding getStringEncoding() {
+			return mStringEncoding;
+		}
+		
+		/**
+		 * Returns the 2-byte char at {@value pos}.
+		 * @param pos
+		 * @return the char
+		 */
+		public char getChar(int pos) {
+			return (char) getUShort(pos);
+		}
+		
+		/**
+		 * Reads a string of 2-byte chars preceded by an int giving the
+		 * number of chars ({@link StringEncoding#Chars}).
+		 * @param pos
+		 * @return the decoded string
+		 */
+		public String getChars(int pos) {
+			final int len = getInt(pos);
+			if ((len < 0) || (len > (mLength - pos - 4) / 2))
+				throw new ArrayIndexOutOfBoundsException("string of "+len+" chars at "+pos+" exceeds packet");
+			final int start = pos+4;
 			
+			char[] out = new char[len];
 			for (int i=0; i<len; i++) {
-				bb.put(mData[pos+4+i]);
+				out[i] = getChar(start+2*i);
 			}
-			
-			String out = "";
-			for (int i=0; i<len; i+=2) {
-				out+=bb.getChar(i);
+			return new String(out);
+		}
+		
+		/**
+		 * Puts a string as an int giving the number of chars followed by
+		 * the 2-byte chars ({@link StringEncoding#Chars}).
+		 * @param st
+		 * @param pos
+		 * @return the number of bytes written
+		 */
+		public int putChars(String st, int pos) {
+			final int len = st.length();
+			ensureSpace(pos, 4+2*len);
+			writeInt(len, pos);
+			pos+=4;
+			for (int i=0; i<len; i++, pos+=2) {
+				writeShort((short) st.charAt(i), pos);
 			}
-			
-			return out;
+			markWritten(pos);
+			return 4+2*len;
 		}
 		
-		public void putString(String st, int pos) {
-			int len = st.length();
-			
-			if (pos+len+4>mData.length) mData = enlarge_array(mData, (pos+len+4)-mData.length);
-			ByteBuffer bb = ByteBuffer.allocate(len + 1);
-			
-			if (mLittleEndian) bb.order(ByteOrder.LITTLE_ENDIAN);
-			else bb.order(ByteOrder.BIG_ENDIAN);
-			
+		////
+		// UTF-8 strings
+		//
+		// Stored as an unsigned short giving the number of bytes,
+		// followed by the UTF-8 encoded string.
+		////
+		
+		/** The most bytes a UTF-8 string may take up, as its length is stored in 2 bytes. */
+		public static final int MaxUtf8Length = 0xFFFF;
+		
+		/**
+		 * Returns the number of bytes the UTF-8 encoding of st takes up,
+		 * without the length prefix.
+		 * @param st
+		 * @return number of bytes
+		 */
+		public static int utf8Length(CharSequence st) {
+			final int len = st.length();
+			int bytes = len;
 			for (int i=0; i<len; i++) {
-				// A char in java is normally 2 bytes long. The following way,
-				// the second byte gets overwritten except for the last one.
-				bb.putChar(i, st.charAt(i));  
+				char ch = st.charAt(i);
+				if (ch >= 0x80) {
+					if (ch < 0x800) {
+						bytes += 1;
+					} else if (Character.isHighSurrogate(ch) && (i+1 < len)
+							&& Character.isLowSurrogate(st.charAt(i+1))) {
+						bytes += 2; /* 4 bytes for the pair */
+						i++;
+					} else {
+						bytes += 2;
+					}
+				}
 			}
-			
-			putInt(len, pos);
-			pos+=4;
-			
-			for (int i = 0; i < bb.array().length - 1; i++) {
-				mData[pos+i] = bb.array()[i];
+			return bytes;
+		}
+		
+		/**
+		 * Puts the length-prefixed UTF-8 encoding of st into the buffer.
+		 * Unpaired surrogates are encoded as U+FFFD, as String.getBytes() does.
+		 * @param st
+		 * @param pos
+		 * @return the number of bytes written, including the prefix
+		 * @throws IllegalArgumentException if the encoding is longer than MaxUtf8Length
+		 */
+		public int putUtf8(CharSequence st, int pos) {
+			final int bytes = utf8Length(st);
+			if (bytes > MaxUtf8Length)
+				throw new IllegalArgumentException("string too long to encode: "+bytes+" bytes");
+			ensureSpace(pos, 2+bytes);
+			writeShort((short) bytes, pos);
+			int p = pos+2;
+			final byte[] data = mData;
+			final int len = st.length();
+			for (int i=0; i<len; i++) {
+				char ch = st.charAt(i);
+				if (ch < 0x80) {
+					data[p++] = (byte) ch;
+				} else if (ch < 0x800) {
+					data[p++] = (byte) (0xC0 | (ch >> 6));
+					data[p++] = (byte) (0x80 | (ch & 0x3F));
+				} else if ((ch >= Character.MIN_SURROGATE) && (ch <= Character.MAX_SURROGATE)) {
+					if (Character.isHighSurrogate(ch) && (i+1 < len)
+							&& Character.isLowSurrogate(st.charAt(i+1))) {
+						int cp = Character.toCodePoint(ch, st.charAt(++i));
+						data[p++] = (byte) (0xF0 | (cp >> 18));
+						data[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+						data[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+						data[p++] = (byte) (0x80 | (cp & 0x3F));
+					} else {
+						/* the replacement character, 3 bytes as counted by utf8Length() */
+						data[p++] = (byte) 0xEF;
+						data[p++] = (byte) 0xBF;
+						data[p++] = (byte) 0xBD;
+					}
+				} else {
+					data[p++] = (byte) (0xE0 | (ch >> 12));
+					data[p++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+					data[p++] = (byte) (0x80 | (ch & 0x3F));
+				}
 			}
+			markWritten(p);
+			return 2+bytes;
 		}
 		
-		public void appendString(String st) {
-			putString(st, mPosition);
-			mPosition+=4; // String length indicator (int)
-			mPosition+=st.length()*2; // Each string char has 2 bytes.
+		/**
+		 * Decodes the length-prefixed UTF-8 string at {@value pos}.
+		 * @param pos
+		 * @return the decoded string
+		 */
+		public String getUtf8(int pos) {
+			StringBuilder out = new StringBuilder(getUShort(pos));
+			getUtf8(pos, out);
+			return out.toString();
 		}
 		
-		public String popString() {
-			String out = getString(mPosition);
-			mPosition+=4;
-			mPosition+=out.length()*2;
+		/**
+		 * Decodes the length-prefixed UTF-8 string at {@value pos} and appends
+		 * it to out, so a reused StringBuilder avoids any allocation.
+		 * Malformed sequences are decoded as U+FFFD.
+		 * @param pos
+		 * @param out
+		 * @return the number of bytes read, including the prefix
+		 */
+		public int getUtf8(int pos, StringBuilder out) {
+			final int bytes = getUShort(pos);
+			final int end = pos+2+bytes;
+			if (end > mLength)
+				throw new ArrayIndexOutOfBoundsException("string of "+bytes+" bytes at "+pos+" exceeds packet");
+			final byte[] data = mData;
+			int p = pos+2;
+			while (p < end) {
+				int b0 = data[p++];
+				if (b0 >= 0) {
+					out.append((char) b0);
+					continue;
+				}
+				b0 &= 0xFF;
+				int extra;
+				int cp;
+				if ((b0 & 0xE0) == 0xC0) {
+					extra = 1;
+					cp = b0 & 0x1F;
+				} else if ((b0 & 0xF0) == 0xE0) {
+					extra = 2;
+					cp = b0 & 0x0F;
+				} else if ((b0 & 0xF8) == 0xF0) {
+					extra = 3;
+					cp = b0 & 0x07;
+				} else {
+					out.append('\uFFFD');
+					continue;
+				}
+				if (p + extra > end) {
+					out.append('\uFFFD');
+					break;
+				}
+				boolean valid = true;
+				for (int i=0; i<extra; i++) {
+					int bb = data[p+i] & 0xFF;
+					if ((bb & 0xC0) != 0x80) {
+						valid = false;
+						break;
+					}
+					cp = (cp << 6) | (bb & 0x3F);
+				}
+				if (!valid || (cp > Character.MAX_CODE_POINT)) {
+					out.append('\uFFFD');
+					continue;
+				}
+				p += extra;
+				if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+					cp -= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+					out.append((char) (Character.MIN_HIGH_SURROGATE + (cp >>> 10)));
+					out.append((char) (Character.MIN_LOW_SURROGATE + (cp & 0x3FF)));
+				} else {
+					out.append((char) cp);
+				}
+			}
+			return 2+bytes;
+		}
+		
+		public void appendUtf8(CharSequence st) {
+			mPosition += putUtf8(st, mPosition);
+		}
+		
+		public String popUtf8() {
+			String out = getUtf8(mPosition);
+			mPosition += 2+getUShort(mPosition);
 			return out;
 		}
 		
+		/**
+		 * Like {@link #getUtf8(int, StringBuilder)} at the current position,
+		 * which is then moved past the string.
+		 */
+		public void popUtf8(StringBuilder out) {
+			mPosition += getUtf8(mPosition, out);
+		}
+		
+		////
+		// ASCII
+		//
+		// Stored as one byte per char, without a length.
+		////
+		
+		/**
+		 * Puts the chars of st as single bytes, dropping the high byte
+		 * of each char.
+		 * @param st
+		 * @param pos
+		 * @return the number of bytes written
+		 */
+		public int putAscii(CharSequence st, int pos) {
+			final int len = st.length();
+			ensureSpace(pos, len);
+			for (int i=0; i<len; i++) {
+				mData[pos+i] = (byte) st.charAt(i);
+			}
+			markWritten(pos+len);
+			return len;
+		}
+		
+		public void appendAscii(CharSequence st) {
+			mPosition += putAscii(st, mPosition);
+		}
+		
+		/**
+		 * Appends numBytes bytes from {@value pos} to out, one char per byte.
+		 * @param pos
+		 * @param numBytes
+		 * @param out
+		 */
+		public void getAscii (int pos, int numBytes, StringBuilder out) {
+			for (int ii=0; ii < numBytes; ii++) {
+				out.append((char) (mData[pos+ii] & 0xFF));
+			}
+		}
+		
 		
 		
 		////
@@ -388,7 +832,7 @@ public interface PacketConnection {
 			
 			for (int ii = 0; ii < size; ii++) {
 				if (mLittleEndian) {
-					value += (mData[pos+ii] & 0xff) << (8 * ii);
+					value |= ((long)mData[pos+ii] & 0xff) << (8 * ii);
 				} else {
 					value = (value << 8) + (mData[pos+ii] & 0xff);
 				}
@@ -431,12 +875,47 @@ public interface PacketConnection {
 			return value;
 		}
 		
+		/**
+		 * Puts a signed long integer of 8 bytes into the buffer.
+		 * @param value
+		 * @param pos
+		 */
+		public void putLong(long value, int pos) {
+			ensureSpace(pos, 8);
+			writeLong(value, pos);
+			markWritten(pos+8);
+		}
+		
+		/**
+		 * Writes the 8 bytes of value at pos, which must be within mData.
+		 */
+		private void writeLong(long value, int pos) {
+			for (int i = 0; i < 8; i++) {
+				if (mLittleEndian) {
+					mData[pos+i] = (byte) (value >>> (8 * i));
+				} else {
+					mData[pos+i] = (byte) (value >>> (8 * (7-i)));
+				}
+			}
+		}
+		
+		public void appendLong(long value) {
+			putLong(value, mPosition);
+			mPosition+=8;
+		}
+		
+		public long popLong() {
+			long out = getLong(mPosition);
+			mPosition+=8;
+			return out;
+		}
+		
 		public String getAscii (int pos, int numBytes) {
-			String str = new String();
+			char[] str = new char[numBytes];
 			for (int ii=0; ii < numBytes; ii++) {
-				str += (char)this.getUByte(pos+ii);
+				str[ii] = (char) (mData[pos+ii] & 0xFF);
 			}
-			return str;
+			return new String(str);
 		}
 		
 		////
@@ -468,14 +947,25 @@ public interface PacketConnection {
 		 * @param pos
 		 */
 		public void putInt (int value, int pos) {
-			final int count = 4;
-			if (pos+count>mData.length) mData = enlarge_array(mData, (pos+count)-mData.length);
-			for (int i = 0; i < count; i++) {
-				if (mLittleEndian) {
-					mData[pos+i] = (byte) ((value >>> (8 * i))&0xFF);
-				} else {
-					mData[pos+i] = (byte) ((value >>> (8 * (count-i)))&0xFF);
-				}
+			ensureSpace(pos, 4);
+			writeInt(value, pos);
+			markWritten(pos+4);
+		}
+		
+		/**
+		 * Writes the 4 bytes of value at pos, which must be within mData.
+		 */
+		private void writeInt(int value, int pos) {
+			if (mLittleEndian) {
+				mData[pos]   = (byte) value;
+				mData[pos+1] = (byte) (value >>> 8);
+				mData[pos+2] = (byte) (value >>> 16);
+				mData[pos+3] = (byte) (value >>> 24);
+			} else {
+				mData[pos]   = (byte) (value >>> 24);
+				mData[pos+1] = (byte) (value >>> 16);
+				mData[pos+2] = (byte) (value >>> 8);
+				mData[pos+3] = (byte) value;
 			}
 		}
 		
@@ -500,16 +990,7 @@ public interface PacketConnection {
 		 * @param pos
 		 */
 		public void putFloat(float value, int pos) {
-			ByteBuffer bb = ByteBuffer.allocate(4);
-			if (mLittleEndian) bb.order(ByteOrder.LITTLE_ENDIAN);
-			else bb.order(ByteOrder.BIG_ENDIAN);
-			bb.putFloat(value);
-			
-			if ((pos+4)>mData.length) mData = enlarge_array(mData, (pos+4)-mData.length);
-			
-			for (byte b: bb.array()) {
-				mData[pos++] = b;
-			}
+			putInt(Float.floatToRawIntBits(value), pos);
 		}
 		
 		/**
@@ -518,11 +999,7 @@ public interface PacketConnection {
 		 * @return
 		 */
 		public float getFloat(int pos) {
-			ByteBuffer bb = ByteBuffer.allocate(mData.length);
-			if (mLittleEndian) bb.order(ByteOrder.LITTLE_ENDIAN);
-			else bb.order(ByteOrder.BIG_ENDIAN);
-			bb.put(mData);
-			return bb.getFloat(pos);
+			return Float.intBitsToFloat(getInt(pos));
 		}
 		
 		public void appendFloat(float value) {
@@ -546,16 +1023,7 @@ public interface PacketConnection {
 		 * @param pos
 		 */
 		public void putDouble(double value, int pos) {
-			ByteBuffer bb = ByteBuffer.allocate(8);
-			if (mLittleEndian) bb.order(ByteOrder.LITTLE_ENDIAN);
-			else bb.order(ByteOrder.BIG_ENDIAN);
-			bb.putDouble(value);
-			
-			if ((pos+8)>mData.length) mData = enlarge_array(mData, (pos+8)-mData.length);
-			
-			for (byte b: bb.array()) {
-				mData[pos++] = b;
-			}
+			putLong(Double.doubleToRawLongBits(value), pos);
 		}
 		
 		/**
@@ -564,11 +1032,7 @@ public interface PacketConnection {
 		 * @return
 		 */
 		public double getDouble(int pos) {
-			ByteBuffer bb = ByteBuffer.allocate(mData.length);
-			if (mLittleEndian) bb.order(ByteOrder.LITTLE_ENDIAN);
-			else bb.order(ByteOrder.BIG_ENDIAN);
-			bb.put(mData);
-			return bb.getDouble(pos);
+			return Double.longBitsToDouble(getLong(pos));
 		}
 		
 		public void appendDouble(double value) {
@@ -582,51 +1046,500 @@ public interface PacketConnection {
 			return out;
 		}
 		
+		////
+		// Variable-length integers
+		//
+		// Unsigned values are stored as LEB128: 7 bits per byte, least
+		// significant group first, the top bit set on all but the last
+		// byte. Signed values are zigzag encoded first (0, -1, 1, -2, ...
+		// become 0, 1, 2, 3, ...) so small magnitudes stay short.
+		// Both are independent of the packet's endianess.
+		////
+		
+		/** The most bytes a variable-length long takes up. */
+		public static final int MaxVarLongSize = 10;
+		/** The most bytes a variable-length int takes up. */
+		public static final int MaxVarIntSize = 5;
+		
+		/**
+		 * @param value treated as unsigned
+		 * @return the number of bytes value takes up as a varint
+		 */
+		public static int varLongSize(long value) {
+			int size = 1;
+			while ((value & ~0x7FL) != 0) {
+				value >>>= 7;
+				size++;
+			}
+			return size;
+		}
+		
+		public static int zigzag(int value) {
+			return (value << 1) ^ (value >> 31);
+		}
+		
+		public static long zigzag(long value) {
+			return (value << 1) ^ (value >> 63);
+		}
+		
+		public static int unzigzag(int value) {
+			return (value >>> 1) ^ -(value & 1);
+		}
+		
+		public static long unzigzag(long value) {
+			return (value >>> 1) ^ -(value & 1);
+		}
+		
+		/**
+		 * Writes value as a varint at pos, which must have room for it.
+		 * @return the position after the varint
+		 */
+		private int writeVarLong(long value, int pos) {
+			while ((value & ~0x7FL) != 0) {
+				mData[pos++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			mData[pos++] = (byte) value;
+			return pos;
+		}
+		
+		/**
+		 * Puts an unsigned variable-length integer into the buffer.
+		 * @param value treated as unsigned
+		 * @param pos
+		 * @return the number of bytes written
+		 */
+		public int putVarLong(long value, int pos) {
+			ensureSpace(pos, varLongSize(value));
+			int end = writeVarLong(value, pos);
+			markWritten(end);
+			return end - pos;
+		}
+		
+		/**
+		 * Puts an unsigned variable-length integer into the buffer.
+		 * @param value treated as unsigned, so negative values take 5 bytes
+		 * @param pos
+		 * @return the number of bytes written
+		 */
+		public int putVarInt(int value, int pos) {
+			return putVarLong(value & 0xFFFFFFFFL, pos);
+		}
+		
+		/**
+		 * Puts a signed, zigzag encoded variable-length integer into the buffer.
+		 * @return the number of bytes written
+		 */
+		public int putSVarLong(long value, int pos) {
+			return putVarLong(zigzag(value), pos);
+		}
+		
+		/**
+		 * Puts a signed, zigzag encoded variable-length integer into the buffer.
+		 * @return the number of bytes written
+		 */
+		public int putSVarInt(int value, int pos) {
+			return putVarInt(zigzag(value), pos);
+		}
+		
+		/**
+		 * Decodes the varint at {@value pos} in a single pass and leaves
+		 * the position after it in mVarEnd.
+		 * @throws ArrayIndexOutOfBoundsException if it runs past the packet's length
+		 * @throws IllegalArgumentException if it is longer than MaxVarLongSize
+		 */
+		private long readVarLong(int pos) {
+			final int start = pos;
+			final int limit = pos + MaxVarLongSize;
+			long value = 0;
+			int shift = 0;
+			while (true) {
+				if (pos >= mLength)
+					throw new ArrayIndexOutOfBoundsException("varint at "+start+" exceeds packet");
+				if (pos == limit)
+					throw new IllegalArgumentException("malformed varint at "+start);
+				byte bb = mData[pos++];
+				value |= (long) (bb & 0x7F) << shift;
+				if (bb >= 0) {
+					mVarEnd = pos;
+					return value;
+				}
+				shift += 7;
+			}
+		}
+		
+		/**
+		 * Returns the number of bytes of the varint at {@value pos}.
+		 * @throws ArrayIndexOutOfBoundsException if it runs past the packet's length
+		 * @throws IllegalArgumentException if it is longer than MaxVarLongSize
+		 */
+		public int getVarLength(int pos) {
+			readVarLong(pos);
+			return mVarEnd - pos;
+		}
+		
+		/**
+		 * Decodes the unsigned variable-length integer at {@value pos}.
+		 * @param pos
+		 * @return the value
+		 * @throws ArrayIndexOutOfBoundsException if it runs past the packet's length
+		 * @throws IllegalArgumentException if it is longer than MaxVarLongSize
+		 */
+		public long getVarLong(int pos) {
+			return readVarLong(pos);
+		}
+		
+		public int getVarInt(int pos) {
+			return (int) getVarLong(pos);
+		}
+		
+		public long getSVarLong(int pos) {
+			return unzigzag(getVarLong(pos));
+		}
+		
+		public int getSVarInt(int pos) {
+			return unzigzag((int) getVarLong(pos));
+		}
+		
+		public void appendVarLong(long value) {
+			mPosition += putVarLong(value, mPosition);
+		}
+		
+		public void appendVarInt(int value) {
+			mPosition += putVarInt(value, mPosition);
+		}
+		
+		public void appendSVarLong(long value) {
+			mPosition += putSVarLong(value, mPosition);
+		}
+		
+		public void appendSVarInt(int value) {
+			mPosition += putSVarInt(value, mPosition);
+		}
+		
+		public long popVarLong() {
+			long out = readVarLong(mPosition);
+			mPosition = mVarEnd;
+			return out;
+		}
+		
+		public int popVarInt() {
+			return (int) popVarLong();
+		}
+		
+		public long popSVarLong() {
+			return unzigzag(popVarLong());
+		}
+		
+		public int popSVarInt() {
+			return unzigzag((int) popVarLong());
+		}
+		
+		////
+		// Delta-encoded int arrays
+		//
+		// Stored as a varint giving the number of elements, followed by
+		// the difference of each element to the one before (the first to
+		// 0) as signed varints. Slowly changing samples mostly take a
+		// single byte each.
+		////
+		
+		/**
+		 * Puts {@value count} ints from values, starting at {@value offset},
+		 * as a delta-encoded array.
+		 * @return the number of bytes written
+		 */
+		public int putDeltaVarIntArray(int[] values, int offset, int count, int pos) {
+			checkTarget(values.length, offset, count);
+			int needed = MaxVarIntSize*(count+1);
+			if (pos+needed > mData.length) {
+				/* only work out the exact size if the worst case doesn't fit */
+				needed = varLongSize(count);
+				int prev = 0;
+				for (int i=0; i<count; i++) {
+					needed += varLongSize(zigzag(values[offset+i] - prev) & 0xFFFFFFFFL);
+					prev = values[offset+i];
+				}
+			}
+			ensureSpace(pos, needed);
+			int p = writeVarLong(count, pos);
+			int prev = 0;
+			for (int i=0; i<count; i++) {
+				int value = values[offset+i];
+				p = writeVarLong(zigzag(value - prev) & 0xFFFFFFFFL, p);
+				prev = value;
+			}
+			markWritten(p);
+			return p - pos;
+		}
+		
+		public int putDeltaVarIntArray(int[] values, int pos) {
+			return putDeltaVarIntArray(values, 0, values.length, pos);
+		}
+		
+		/**
+		 * Returns the number of elements of the delta-encoded array at
+		 * {@value pos}, after checking it is plausible (every element takes
+		 * up at least one byte). Leaves the position of the first element
+		 * in mVarEnd.
+		 */
+		private int deltaArrayLength(int pos) {
+			int count = (int) readVarLong(pos);
+			if ((count < 0) || (count > mLength - mVarEnd))
+				throw new ArrayIndexOutOfBoundsException("array of "+count+" elements at "+pos+" exceeds packet");
+			return count;
+		}
+		
+		/**
+		 * Decodes the delta-encoded array at {@value pos} into out.
+		 * @return the position after the array
+		 */
+		private int readDeltaVarIntArray(int pos, int[] out, int offset) {
+			final int count = deltaArrayLength(pos);
+			checkTarget(out.length, offset, count);
+			pos = mVarEnd;
+			int prev = 0;
+			for (int i=0; i<count; i++) {
+				prev += unzigzag((int) readVarLong(pos));
+				out[offset+i] = prev;
+				pos = mVarEnd;
+			}
+			return pos;
+		}
+		
+		/**
+		 * Decodes the delta-encoded array at {@value pos} into out,
+		 * starting at {@value offset}, without allocating.
+		 * @return the number of elements decoded
+		 * @throws ArrayIndexOutOfBoundsException if out is too small
+		 */
+		public int getDeltaVarIntArray(int pos, int[] out, int offset) {
+			readDeltaVarIntArray(pos, out, offset);
+			return getVarInt(pos);
+		}
+		
+		public int[] getDeltaVarIntArray(int pos) {
+			int[] out = new int[deltaArrayLength(pos)];
+			readDeltaVarIntArray(pos, out, 0);
+			return out;
+		}
+		
+		public void appendDeltaVarIntArray(int[] values) {
+			mPosition += putDeltaVarIntArray(values, mPosition);
+		}
+		
+		/**
+		 * Like {@link #getDeltaVarIntArray(int, int[], int)} at the current
+		 * position, which is then moved past the array.
+		 */
+		public int popDeltaVarIntArray(int[] out, int offset) {
+			int count = getVarInt(mPosition);
+			mPosition = readDeltaVarIntArray(mPosition, out, offset);
+			return count;
+		}
+		
+		public int[] popDeltaVarIntArray() {
+			int[] out = new int[deltaArrayLength(mPosition)];
+			mPosition = readDeltaVarIntArray(mPosition, out, 0);
+			return out;
+		}
+		
+		////
+		// Arrays
+		//
+		// Arrays are stored as an int giving the number of elements,
+		// followed by the elements. Each function checks the bounds
+		// once and then makes a single pass over the backing array.
+		////
+		
+		/**
+		 * Returns the number of elements of the array stored at {@value pos},
+		 * after checking that they all lie within the packet.
+		 * @param pos
+		 * @param elementSize in bytes
+		 * @return number of elements
+		 * @throws ArrayIndexOutOfBoundsException
+		 */
+		private int arrayLength(int pos, int elementSize) {
+			int leng = getInt(pos);
+			if ((leng < 0) || (leng > (mLength - pos - 4) / elementSize))
+				throw new ArrayIndexOutOfBoundsException("array of "+leng+" elements at "+pos+" exceeds packet");
+			return leng;
+		}
+		
+		private static void checkTarget(int length, int offset, int count) {
+			if ((offset < 0) || (count < 0) || (offset > length - count))
+				throw new ArrayIndexOutOfBoundsException("offset "+offset+" and count "+count+" exceed array of "+length);
+		}
+		
 		////
 		// Int arrays
 		////
 		
+		/**
+		 * Puts an array of ints into the buffer, starting at position pos
+		 * @param values
+		 * @param pos
+		 */
 		public void putIntArray(int[] values, int pos) {
-			// The enlarging would also be done for each int individually, 
-			// but this saves (a tiny bit) of time. 
-			if ((pos+4*values.length)>mData.length) mData = enlarge_array(mData, (pos+4*values.length)-mData.length);
-			
-			putInt(values.length, pos);
-			for (int i=0; i<values.length; i++) {
-				putInt(values[i], pos+4+i*4);
+			putIntArray(values, 0, values.length, pos);
+		}
+		
+		/**
+		 * Puts {@value count} ints from values, starting at {@value offset},
+		 * into the buffer as an array starting at position pos
+		 * @param values
+		 * @param offset
+		 * @param count
+		 * @param pos
+		 */
+		public void putIntArray(int[] values, int offset, int count, int pos) {
+			checkTarget(values.length, offset, count);
+			ensureSpace(pos, 4+4*count);
+			writeInt(count, pos);
+			pos += 4;
+			for (int i=0; i<count; i++, pos+=4) {
+				writeInt(values[offset+i], pos);
 			}
+			markWritten(pos);
 		}
 		
 		/**
-		 * Reads the bytes between start- end endPos and decodes them into ints
-		 * @param startPos
-		 * @param endPos
+		 * Decodes the array stored at position pos into a new array
+		 * @param pos
 		 * @return An array of decoded ints
 		 */
 		public int[] getIntArray(int pos) {
-			int leng = getInt(pos);
-			int[] out = new int[leng];
-			
-			for (int i = 1; i<leng+1; i++) {
-				out[i] = getInt(pos+i*4);
-			}
-			
+			int[] out = new int[arrayLength(pos, 4)];
+			getIntArray(pos, out, 0);
 			return out;
 		}
 		
+		/**
+		 * Decodes the array stored at position pos into the given array,
+		 * starting at {@value offset}, without allocating.
+		 * @param pos
+		 * @param out must have room for all elements
+		 * @param offset
+		 * @return the number of elements decoded
+		 * @throws ArrayIndexOutOfBoundsException if out is too small
+		 */
+		public int getIntArray(int pos, int[] out, int offset) {
+			final int leng = arrayLength(pos, 4);
+			checkTarget(out.length, offset, leng);
+			pos += 4;
+			for (int i=0; i<leng; i++) {
+				out[offset+i] = getInt(pos+i*4);
+			}
+			return leng;
+		}
+		
 		public void appendIntArray(int[] values) {
 			putIntArray(values, mPosition);
+			mPosition += 4; // Length indicator (4 bytes)
+			mPosition += 4 * values.length;
 		}
 		
 		public int[] popIntArray() {
-			int leng = popInt();
-			int[] out = new int[leng];
-			for (int i = 0; i<leng; i++) {
-				out[i] = popInt();
+			int[] out = getIntArray(mPosition);
+			mPosition += 4 + 4 * out.length;
+			return out;
+		}
+		
+		/**
+		 * Like {@link #getIntArray(int, int[], int)} at the current position,
+		 * which is then moved past the array.
+		 */
+		public int popIntArray(int[] out, int offset) {
+			int leng = getIntArray(mPosition, out, offset);
+			mPosition += 4 + 4 * leng;
+			return leng;
+		}
+		
+		////
+		// Short arrays
+		////
+		
+		/**
+		 * Puts an array of shorts into the buffer, starting at position pos
+		 * @param values
+		 * @param pos
+		 */
+		public void putShortArray(short[] values, int pos) {
+			putShortArray(values, 0, values.length, pos);
+		}
+		
+		/**
+		 * Puts {@value count} shorts from values, starting at {@value offset},
+		 * into the buffer as an array starting at position pos
+		 * @param values
+		 * @param offset
+		 * @param count
+		 * @param pos
+		 */
+		public void putShortArray(short[] values, int offset, int count, int pos) {
+			checkTarget(values.length, offset, count);
+			ensureSpace(pos, 4+2*count);
+			writeInt(count, pos);
+			pos += 4;
+			for (int i=0; i<count; i++, pos+=2) {
+				writeShort(values[offset+i], pos);
+			}
+			markWritten(pos);
+		}
+		
+		/**
+		 * Decodes the array stored at position pos into a new array
+		 * @param pos
+		 * @return An array of decoded shorts
+		 */
+		public short[] getShortArray(int pos) {
+			short[] out = new short[arrayLength(pos, 2)];
+			getShortArray(pos, out, 0);
+			return out;
+		}
+		
+		/**
+		 * Decodes the array stored at position pos into the given array,
+		 * starting at {@value offset}, without allocating.
+		 * @param pos
+		 * @param out must have room for all elements
+		 * @param offset
+		 * @return the number of elements decoded
+		 * @throws ArrayIndexOutOfBoundsException if out is too small
+		 */
+		public int getShortArray(int pos, short[] out, int offset) {
+			final int leng = arrayLength(pos, 2);
+			checkTarget(out.length, offset, leng);
+			pos += 4;
+			for (int i=0; i<leng; i++) {
+				out[offset+i] = getShort(pos+i*2);
 			}
+			return leng;
+		}
+		
+		public void appendShortArray(short[] values) {
+			putShortArray(values, mPosition);
+			mPosition += 4; // Length indicator (4 bytes)
+			mPosition += 2 * values.length;
+		}
+		
+		public short[] popShortArray() {
+			short[] out = getShortArray(mPosition);
+			mPosition += 4 + 2 * out.length;
 			return out;
 		}
 		
+		/**
+		 * Like {@link #getShortArray(int, short[], int)} at the current position,
+		 * which is then moved past the array.
+		 */
+		public int popShortArray(short[] out, int offset) {
+			int leng = getShortArray(mPosition, out, offset);
+			mPosition += 4 + 2 * leng;
+			return leng;
+		}
+		
 		////
 		// Float arrays
 		////
@@ -637,27 +1550,58 @@ public interface PacketConnection {
 		 * @param pos
 		 */
 		public void putFloatArray(float[] values, int pos) {
-			putInt(values.length, pos);
-			for (int i=0; i<values.length; i++) {
-				putFloat(values[i], pos+4+i*4);
+			putFloatArray(values, 0, values.length, pos);
+		}
+		
+		/**
+		 * Puts {@value count} floats from values, starting at {@value offset},
+		 * into the buffer as an array starting at position pos
+		 * @param values
+		 * @param offset
+		 * @param count
+		 * @param pos
+		 */
+		public void putFloatArray(float[] values, int offset, int count, int pos) {
+			checkTarget(values.length, offset, count);
+			ensureSpace(pos, 4+4*count);
+			writeInt(count, pos);
+			pos += 4;
+			for (int i=0; i<count; i++, pos+=4) {
+				writeInt(Float.floatToRawIntBits(values[offset+i]), pos);
 			}
+			markWritten(pos);
 		}
 		
 		/**
-		 * Reads the bytes between start- end endPos and decodes them into floats
-		 * @param startPos
-		 * @param endPos
+		 * Decodes the array stored at position pos into a new array
+		 * @param pos
 		 * @return An array of decoded floats
 		 */
 		public float[] getFloatArray(int pos) {
-			int leng = getInt(pos);
-			float[] out = new float[leng];
-			for (int i=1; i<leng+1; i++) {
-				out[i] = getFloat(pos+i);
-			}
+			float[] out = new float[arrayLength(pos, 4)];
+			getFloatArray(pos, out, 0);
 			return out;
 		}
 		
+		/**
+		 * Decodes the array stored at position pos into the given array,
+		 * starting at {@value offset}, without allocating.
+		 * @param pos
+		 * @param out must have room for all elements
+		 * @param offset
+		 * @return the number of elements decoded
+		 * @throws ArrayIndexOutOfBoundsException if out is too small
+		 */
+		public int getFloatArray(int pos, float[] out, int offset) {
+			final int leng = arrayLength(pos, 4);
+			checkTarget(out.length, offset, leng);
+			pos += 4;
+			for (int i=0; i<leng; i++) {
+				out[offset+i] = Float.intBitsToFloat(getInt(pos+i*4));
+			}
+			return leng;
+		}
+		
 		public void appendFloatArray(float[] values) {
 			putFloatArray(values, mPosition);
 			mPosition += 4; // Length indicator (4 bytes)
@@ -665,14 +1609,105 @@ public interface PacketConnection {
 		}
 		
 		public float[] popFloatArray() {
-			int leng = popInt();
-			float[] out = new float[leng];
+			float[] out = getFloatArray(mPosition);
+			mPosition += 4 + 4 * out.length;
+			return out;
+		}
+		
+		/**
+		 * Like {@link #getFloatArray(int, float[], int)} at the current position,
+		 * which is then moved past the array.
+		 */
+		public int popFloatArray(float[] out, int offset) {
+			int leng = getFloatArray(mPosition, out, offset);
+			mPosition += 4 + 4 * leng;
+			return leng;
+		}
+		
+		////
+		// Double arrays
+		////
+		
+		/**
+		 * Puts an array of doubles into the buffer, starting at position pos
+		 * @param values
+		 * @param pos
+		 */
+		public void putDoubleArray(double[] values, int pos) {
+			putDoubleArray(values, 0, values.length, pos);
+		}
+		
+		/**
+		 * Puts {@value count} doubles from values, starting at {@value offset},
+		 * into the buffer as an array starting at position pos
+		 * @param values
+		 * @param offset
+		 * @param count
+		 * @param pos
+		 */
+		public void putDoubleArray(double[] values, int offset, int count, int pos) {
+			checkTarget(values.length, offset, count);
+			ensureSpace(pos, 4+8*count);
+			writeInt(count, pos);
+			pos += 4;
+			for (int i=0; i<count; i++, pos+=8) {
+				writeLong(Double.doubleToRawLongBits(values[offset+i]), pos);
+			}
+			markWritten(pos);
+		}
+		
+		/**
+		 * Decodes the array stored at position pos into a new array
+		 * @param pos
+		 * @return An array of decoded doubles
+		 */
+		public double[] getDoubleArray(int pos) {
+			double[] out = new double[arrayLength(pos, 8)];
+			getDoubleArray(pos, out, 0);
+			return out;
+		}
+		
+		/**
+		 * Decodes the array stored at position pos into the given array,
+		 * starting at {@value offset}, without allocating.
+		 * @param pos
+		 * @param out must have room for all elements
+		 * @param offset
+		 * @return the number of elements decoded
+		 * @throws ArrayIndexOutOfBoundsException if out is too small
+		 */
+		public int getDoubleArray(int pos, double[] out, int offset) {
+			final int leng = arrayLength(pos, 8);
+			checkTarget(out.length, offset, leng);
+			pos += 4;
 			for (int i=0; i<leng; i++) {
-				out[i] = popFloat();
+				out[offset+i] = Double.longBitsToDouble(getLong(pos+i*8));
 			}
+			return leng;
+		}
+		
+		public void appendDoubleArray(double[] values) {
+			putDoubleArray(values, mPosition);
+			mPosition += 4; // Length indicator (4 bytes)
+			mPosition += 8 * values.length;
+		}
+		
+		public double[] popDoubleArray() {
+			double[] out = getDoubleArray(mPosition);
+			mPosition += 4 + 8 * out.length;
 			return out;
 		}
 		
+		/**
+		 * Like {@link #getDoubleArray(int, double[], int)} at the current position,
+		 * which is then moved past the array.
+		 */
+		public int popDoubleArray(double[] out, int offset) {
+			int leng = getDoubleArray(mPosition, out, offset);
+			mPosition += 4 + 8 * leng;
+			return leng;
+		}
+		
 		 /**
 		  * Returns the value of the elapsedRealtime system clock as it was
 		  * after reception of the start flag for this packet.
@@ -690,10 +1725,11 @@ public interface PacketConnection {
 			return packetEndMillis;
 		}
 		
-		public byte[] enlarge_array(byte[] in, int size) {
-			byte[] cop = new byte[in.length+size];
-			System.arraycopy(in, 0, cop, 0, in.length);
-			return cop;
+		/**
+		 * Makes sure {@value count} bytes can be written at {@value pos}.
+		 */
+		private void ensureSpace(int pos, int count) {
+			if (pos+count>mData.length) ensureCapacity(pos+count);
 		}
 		
 		@Override
@@ -701,7 +1737,7 @@ public interface PacketConnection {
 			//StringBuilder builder = new StringBuilder();
 			//builder.append("Packet ");
 			//builder.append(Utils.ByteArrayToHexa(mData, mPosition));
-			return Utils.ByteArrayToHexa(mData, mData.length);
+			return Utils.ByteArrayToHexa(mData, mLength);
 		}
 	}
 	
@@ -773,6 +1809,19 @@ public interface PacketConnection {
 	 */
 	public void send (Packet pkt) throws IOException;
 
+	/**
+	 * Sends a packet like {@link #send(Packet)}, but without blocking
+	 * the caller on the socket (when the connection writes asynchronously)
+	 * and without throwing: the callback learns whether the packet reached
+	 * the socket or was lost, e.g. because the connection went down first.
+	 * 
+	 * The packet must not be modified until the callback has been called.
+	 * 
+	 * @param pkt the packet to send
+	 * @param callback told of the outcome, possibly on another thread
+	 */
+	public void sendAsync (Packet pkt, SendCallback callback);
+
 	/**
 	 * Returns true if the connection is alive. Will be
 	 * false if the state is either <tt>Disconnected</tt> or
@@ -11,5 +11,15 @@ public interface PacketConnectionHandler {
 	void connectionLost(String message);
 	void connectionClosed();
 	
+	/**
+	 * Called for every packet received. The packet now belongs to the
+	 * handler and may be kept for as long as needed.
+	 * 
+	 * Once done with it, the handler should call {@link Packet#release()}
+	 * so the connection can reuse the packet instead of allocating a new
+	 * one; it must not touch the packet after that. Packets that are never
+	 * released are simply garbage collected.
+	 * @param receivedPacket
+	 */
 	void packetReceived(Packet receivedPacket);
 }
@@ -0,0 +1,393 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Hosts many framed packet connections over non-blocking NIO channels
+ * on a small, fixed number of event-loop threads, e.g. for a gateway
+ * aggregating the streams of hundreds of sensors. Where
+ * {@link TransportPacketConnection} needs one blocked reader thread per
+ * link, here each loop waits on a Selector for all of its channels at
+ * once.
+ *
+ * Connections are handed out as {@link ChannelPacketConnection}s and
+ * spread over the loops round-robin. Each uses its own {@link Framer}
+ * and reports to its own {@link PacketConnectionHandler}, whose callbacks
+ * (except connectionClosed()) are called on the connection's loop. They
+ * must therefore return quickly: a handler that blocks stalls every
+ * connection of its loop. A handler that throws only ends its own
+ * connection, which is reported through connectionLost().
+ */
+public class PacketGateway {
+	/** Default size of each loop's read buffer, i.e. the most bytes read from a channel at once */
+	public static final int DefReadBufferSize = 8192;
+	/** Connections waiting to be accepted before the system refuses more, see {@link #listen(SocketAddress, Acceptor)} */
+	public static final int AcceptBacklog = 1024;
+
+	/**
+	 * Learns of connections accepted on a listening channel, see
+	 * {@link PacketGateway#listen(SocketAddress, Acceptor)}.
+	 */
+	public interface Acceptor {
+		/**
+		 * Called on an event loop for every accepted channel. The acceptor
+		 * passes it to {@link PacketGateway#register(SocketChannel, PacketConnectionHandler, Framer, int)}
+		 * or closes it.
+		 * @param channel
+		 */
+		void channelAccepted(SocketChannel channel);
+
+		/**
+		 * Called on an event loop if the listening channel could not be
+		 * registered, in which case it has been closed, or if accepting
+		 * failed, in which case the acceptor may close it.
+		 * @param server
+		 * @param e
+		 */
+		void acceptFailed(ServerSocketChannel server, IOException e);
+	}
+
+	private final EventLoop[] mLoops;
+	/** loop the next connection is assigned to */
+	private int mNextLoop = 0;
+	private volatile boolean mClosed = false;
+
+	/**
+	 * Starts the event loops.
+	 * @param eventLoops number of threads, e.g. the number of cores
+	 * @param readBufferSize the most bytes read from a channel at once
+	 * @param threadFactory creates the loops' threads, null for plain threads
+	 * @throws IOException if a Selector cannot be opened
+	 */
+	public PacketGateway(int eventLoops, int readBufferSize, ThreadFactory threadFactory) throws IOException {
+		if ((eventLoops < 1) || (readBufferSize < 1))
+			throw new IllegalArgumentException("invalid gateway parameters");
+		mLoops = new EventLoop[eventLoops];
+		try {
+			for (int ii = 0; ii < eventLoops; ii++)
+				mLoops[ii] = new EventLoop(readBufferSize);
+		} catch (IOException e) {
+			for (int ii = 0; (ii < eventLoops) && (mLoops[ii] != null); ii++)
+				mLoops[ii].mmSelector.close();
+			throw e;
+		}
+		for (int ii = 0; ii < eventLoops; ii++) {
+			final EventLoop loop = mLoops[ii];
+			loop.mmThread = (threadFactory != null) ? threadFactory.newThread(loop)
+					: new Thread(loop, "PacketGateway " + ii);
+		}
+		for (EventLoop loop : mLoops)
+			loop.mmThread.start();
+	}
+
+	public PacketGateway(int eventLoops, int readBufferSize) throws IOException {
+		this(eventLoops, readBufferSize, null);
+	}
+
+	public PacketGateway(int eventLoops) throws IOException {
+		this(eventLoops, DefReadBufferSize, null);
+	}
+
+	/**
+	 * Takes over a connected channel, e.g. one that was accepted.
+	 * connected() is called on the connection's loop once it is registered.
+	 * @param channel switched to non-blocking mode
+	 * @param handler receives the connection's packets and status changes
+	 * @param framer used by this connection only
+	 * @param maxPacketSize this is the size of the maximum expected packet on this connection
+	 * @return the connection
+	 * @throws IOException if the gateway is closed or the channel cannot be made non-blocking
+	 */
+	public ChannelPacketConnection register(SocketChannel channel, PacketConnectionHandler handler,
+			Framer framer, int maxPacketSize) throws IOException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		final EventLoop loop = nextLoop();
+		final ChannelPacketConnection conn = new ChannelPacketConnection(loop, channel, handler, framer, maxPacketSize);
+		loop.post(conn);
+		return conn;
+	}
+
+	/**
+	 * Opens a connection without blocking. connected() or connectFailed()
+	 * is called on the connection's loop; there are no retries.
+	 * @param address
+	 * @param handler receives the connection's packets and status changes
+	 * @param framer used by this connection only
+	 * @param maxPacketSize this is the size of the maximum expected packet on this connection
+	 * @return the connection, which cannot send until connected
+	 * @throws IOException if the gateway is closed or the channel cannot be opened
+	 */
+	public ChannelPacketConnection connect(SocketAddress address, PacketConnectionHandler handler,
+			Framer framer, int maxPacketSize) throws IOException {
+		final SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			final EventLoop loop = nextLoop();
+			final ChannelPacketConnection conn = new ChannelPacketConnection(loop, channel, handler, framer, maxPacketSize);
+			conn.mConnecting = !channel.connect(address);
+			loop.post(conn);
+			return conn;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Accepts connections on the given address. The acceptor is called on
+	 * the first loop, which also reads its share of connections.
+	 * @param address
+	 * @param acceptor
+	 * @return the listening channel; closing it stops accepting
+	 * @throws IOException
+	 */
+	public ServerSocketChannel listen(SocketAddress address, Acceptor acceptor) throws IOException {
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.configureBlocking(false);
+			server.socket().bind(address, AcceptBacklog);
+			mLoops[0].postListener(server, acceptor);
+			return server;
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+	}
+
+	private synchronized EventLoop nextLoop() throws IOException {
+		if (mClosed)
+			throw new IOException("PacketGateway is closed");
+		final EventLoop loop = mLoops[mNextLoop];
+		mNextLoop = (mNextLoop + 1) % mLoops.length;
+		return loop;
+	}
+
+	/**
+	 * Closes all connections and stops the event loops. The handlers'
+	 * connectionClosed() is called on the loops.
+	 */
+	public void close() {
+		synchronized (this) {
+			mClosed = true;
+		}
+		for (EventLoop loop : mLoops)
+			loop.mmSelector.wakeup();
+	}
+
+	/**
+	 * @return the number of event-loop threads
+	 */
+	public int getEventLoops() {
+		return mLoops.length;
+	}
+
+	/**
+	 * Waits on its Selector and services the channels registered with it.
+	 * Other threads hand it work through post(), which wakes it up.
+	 */
+	class EventLoop implements Runnable {
+		final Selector mmSelector;
+		/** the thread running this loop, set before it starts */
+		Thread mmThread;
+		/** every connection of this loop reads into this buffer and decodes it straight away */
+		private final ByteBuffer mmReadBuffer;
+		/** connections to register or to be given write interest, filled by other threads */
+		private ArrayList<ChannelPacketConnection> mmPending = new ArrayList<ChannelPacketConnection>();
+		private ArrayList<ChannelPacketConnection> mmServicing = new ArrayList<ChannelPacketConnection>();
+		private final ArrayList<ServerSocketChannel> mmPendingServers = new ArrayList<ServerSocketChannel>();
+		private final ArrayList<Acceptor> mmPendingAcceptors = new ArrayList<Acceptor>();
+		/** set once the loop has stopped taking posts, guarded by this */
+		private boolean mmShutDown = false;
+
+		EventLoop(int readBufferSize) throws IOException {
+			mmSelector = Selector.open();
+			mmReadBuffer = ByteBuffer.allocate(readBufferSize);
+		}
+
+		/**
+		 * Asks the loop to register the connection's channel, or to update its
+		 * interest set if it is registered already. If the loop has shut
+		 * down already the connection is closed instead, as it would
+		 * otherwise never be registered nor closed.
+		 */
+		void post(ChannelPacketConnection conn) {
+			synchronized (this) {
+				if (!mmShutDown) {
+					mmPending.add(conn);
+					conn = null;
+				}
+			}
+			if (conn != null) {
+				conn.close();
+				return;
+			}
+			mmSelector.wakeup();
+		}
+
+		private void postListener(ServerSocketChannel server, Acceptor acceptor) throws IOException {
+			synchronized (this) {
+				if (!mmShutDown) {
+					mmPendingServers.add(server);
+					mmPendingAcceptors.add(acceptor);
+					mmSelector.wakeup();
+					return;
+				}
+			}
+			throw new IOException("PacketGateway is closed");
+		}
+
+		boolean isCurrentThread() {
+			return Thread.currentThread() == mmThread;
+		}
+
+		public void run() {
+			try {
+				while (!mClosed) {
+					mmSelector.select();
+					processPending();
+					final Iterator<SelectionKey> keys = mmSelector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						final SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid())
+							continue;
+						if (key.attachment() instanceof Acceptor) {
+							accept(key);
+							continue;
+						}
+						final ChannelPacketConnection conn = (ChannelPacketConnection) key.attachment();
+						try {
+							if (key.isConnectable())
+								conn.connectReady();
+							if (key.isValid() && key.isReadable())
+								conn.readReady(mmReadBuffer);
+							if (key.isValid() && key.isWritable())
+								conn.writeReady();
+						} catch (RuntimeException e) {
+							callbackFailed(conn, e);
+						}
+					}
+				}
+			} catch (IOException e) {
+				/* the Selector failed; shutDown() tells every connection */
+			} catch (ClosedSelectorException e) {
+				/* closed while selecting */
+			} finally {
+				shutDown();
+			}
+		}
+
+		/**
+		 * Ends the connection whose handler has thrown, so the exception
+		 * does not stop the loop and every other connection on it.
+		 */
+		private void callbackFailed(ChannelPacketConnection conn, RuntimeException e) {
+			try {
+				conn.callbackFailed(e);
+			} catch (RuntimeException ignored) {
+				/* connectionLost() threw as well; the connection is closed either way */
+			}
+		}
+
+		/**
+		 * Registers new channels and applies interest changes asked for by other threads.
+		 */
+		private void processPending() {
+			final ArrayList<ChannelPacketConnection> pending;
+			final ArrayList<ServerSocketChannel> servers;
+			final ArrayList<Acceptor> acceptors;
+			synchronized (this) {
+				pending = mmPending;
+				mmPending = mmServicing;
+				mmServicing = pending;
+				servers = new ArrayList<ServerSocketChannel>(mmPendingServers);
+				acceptors = new ArrayList<Acceptor>(mmPendingAcceptors);
+				mmPendingServers.clear();
+				mmPendingAcceptors.clear();
+			}
+			for (int ii = 0; ii < servers.size(); ii++) {
+				final ServerSocketChannel server = servers.get(ii);
+				try {
+					server.register(mmSelector, SelectionKey.OP_ACCEPT, acceptors.get(ii));
+				} catch (IOException e) {
+					try {
+						server.close();
+					} catch (IOException ignored) {}
+					acceptFailed(acceptors.get(ii), server, e);
+				}
+			}
+			for (int ii = 0; ii < pending.size(); ii++) {
+				final ChannelPacketConnection conn = pending.get(ii);
+				try {
+					conn.registerOrUpdate(mmSelector);
+				} catch (RuntimeException e) {
+					callbackFailed(conn, e);
+				}
+			}
+			pending.clear();
+		}
+
+		private void accept(SelectionKey key) {
+			final ServerSocketChannel server = (ServerSocketChannel) key.channel();
+			final Acceptor acceptor = (Acceptor) key.attachment();
+			SocketChannel channel = null;
+			try {
+				while ((channel = server.accept()) != null)
+					acceptor.channelAccepted(channel);
+			} catch (IOException e) {
+				acceptFailed(acceptor, server, e);
+			} catch (RuntimeException e) {
+				/* the acceptor threw; drop the channel it was given */
+				try {
+					channel.close();
+				} catch (IOException ignored) {}
+			}
+		}
+
+		private void acceptFailed(Acceptor acceptor, ServerSocketChannel server, IOException e) {
+			try {
+				acceptor.acceptFailed(server, e);
+			} catch (RuntimeException ignored) {
+				/* nothing more to tell */
+			}
+		}
+
+		/**
+		 * Closes every channel of this loop, and the Selector.
+		 */
+		private void shutDown() {
+			synchronized (this) {
+				mmShutDown = true;
+			}
+			processPending();
+			for (SelectionKey key : mmSelector.keys()) {
+				if (key.attachment() instanceof ChannelPacketConnection) {
+					try {
+						((ChannelPacketConnection) key.attachment()).close();
+					} catch (RuntimeException ignored) {
+						/* thrown by connectionClosed(); the channel is closed */
+					}
+				} else {
+					try {
+						key.channel().close();
+					} catch (IOException ignored) {}
+				}
+			}
+			try {
+				mmSelector.close();
+			} catch (IOException ignored) {}
+		}
+	}
+}
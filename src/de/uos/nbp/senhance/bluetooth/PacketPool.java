@@ -0,0 +1,121 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import de.uos.nbp.senhance.bluetooth.PacketConnection.Packet;
+
+/**
+ * A bounded pool of reusable packets, so that a connection
+ * does not need to allocate a new Packet for every frame.
+ *
+ * Packets handed out by {@link #obtain()} find their way back
+ * through {@link Packet#release()}. If a packet is never released
+ * it is simply garbage collected; if more packets are released
+ * than the pool holds, the surplus is dropped. The pool is
+ * thread-safe, as packets are typically obtained on one thread
+ * and released on another.
+ */
+public class PacketPool {
+	public static final int DefPoolCapacity = 32;
+
+	private final int mPacketSize;
+	private volatile int mCapacityLimit;
+	private final Packet[] mPackets;
+	private int mCount = 0;
+	/** packets created by obtain() so far */
+	private long mCreated = 0;
+
+	/**
+	 * @param packetSize initial size of the packets created by this pool
+	 * @param capacityLimit the size beyond which the packets may not grow
+	 * @param capacity the maximum number of idle packets kept
+	 */
+	public PacketPool(int packetSize, int capacityLimit, int capacity) {
+		mPacketSize = packetSize;
+		mCapacityLimit = capacityLimit;
+		mPackets = new Packet[capacity];
+	}
+
+	/**
+	 * Creates a pool of packets that are limited to their initial size.
+	 * @param packetSize
+	 */
+	public PacketPool(int packetSize) {
+		this(packetSize, packetSize, DefPoolCapacity);
+	}
+
+	/**
+	 * Returns an empty packet, reusing a released one if available.
+	 * @return a packet with position 0
+	 */
+	public Packet obtain() {
+		Packet pkt = null;
+		synchronized (this) {
+			if (mCount > 0) {
+				pkt = mPackets[--mCount];
+				mPackets[mCount] = null;
+				pkt.mInPool = false;
+			}
+		}
+		final int capacityLimit = mCapacityLimit;
+		if ((pkt == null) || (pkt.getCapacity() > capacityLimit)) {
+			pkt = new Packet(mPacketSize);
+			pkt.mPool = this;
+			synchronized (this) {
+				mCreated++;
+			}
+		}
+		pkt.setCapacityLimit(capacityLimit);
+		return pkt;
+	}
+
+	/**
+	 * Takes a packet back, called from {@link Packet#release()}.
+	 * @param pkt
+	 * @throws IllegalStateException if the packet is already in the pool
+	 */
+	void recycle(Packet pkt) {
+		/* checked and set together, so two racing releases cannot both pass */
+		synchronized (this) {
+			if (pkt.mInPool)
+				throw new IllegalStateException("Packet released more than once");
+			pkt.mInPool = true;
+		}
+		pkt.reset();
+		pkt.mLittleEndian = true;
+		pkt.mStringEncoding = PacketConnection.StringEncoding.Chars;
+		synchronized (this) {
+			if (mCount < mPackets.length)
+				mPackets[mCount++] = pkt;
+		}
+	}
+
+	/**
+	 * Changes the size beyond which packets may not grow, for packets
+	 * obtained from now on.
+	 * @param capacityLimit at least the initial packet size
+	 */
+	public void setCapacityLimit(int capacityLimit) {
+		if (capacityLimit < mPacketSize)
+			throw new IllegalArgumentException("capacity limit "+capacityLimit
+					+" below packet size "+mPacketSize);
+		mCapacityLimit = capacityLimit;
+	}
+
+	public int getCapacityLimit() {
+		return mCapacityLimit;
+	}
+
+	/**
+	 * @return the number of idle packets currently held
+	 */
+	public synchronized int size() {
+		return mCount;
+	}
+
+	/**
+	 * @return the number of packets this pool has created; it stays
+	 * put once released packets cover the demand
+	 */
+	public synchronized long getCreatedCount() {
+		return mCreated;
+	}
+}
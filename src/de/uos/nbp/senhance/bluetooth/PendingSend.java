@@ -0,0 +1,20 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import de.uos.nbp.senhance.bluetooth.PacketConnection.Packet;
+
+/**
+ * An asynchronous send whose callback is still due, kept by writers
+ * that queue data until it has been written.
+ */
+class PendingSend {
+	/** total bytes queued by the writer after the send's last byte */
+	final long mEnd;
+	final Packet mPacket;
+	final SendCallback mCallback;
+
+	PendingSend(long end, Packet pkt, SendCallback callback) {
+		mEnd = end;
+		mPacket = pkt;
+		mCallback = callback;
+	}
+}
@@ -0,0 +1,54 @@
+package de.uos.nbp.senhance.bluetooth;
+
+/**
+ * A block of bytes that was read from the input stream in one
+ * call, together with the time at which it was received.
+ *
+ * Chunks are owned and recycled by the {@link BluetoothService}
+ * that read them, so a receiver must not keep a reference to the
+ * chunk (or its backing array) after it has been handed back.
+ */
+public class ReceiveChunk {
+	/** Default size of the backing array, i.e. the most bytes a single read() may return. */
+	public static final int DefChunkSize = 1024;
+
+	/** backing array, reused for every read into this chunk */
+	final byte[] mData;
+	/** index of the first valid byte in mData */
+	int mOffset;
+	/** number of valid bytes starting at mOffset */
+	int mLength;
+
+	/** time in milliseconds since Unix epoch at which the chunk was read, in Android time */
+	long mReceiveTime;
+	/** System elapsedRealtime at which the chunk was read */
+	long mReceiveMillis;
+
+	public ReceiveChunk(int size) {
+		mData = new byte[size];
+	}
+
+	public ReceiveChunk() {
+		this(DefChunkSize);
+	}
+
+	public byte[] getData() {
+		return mData;
+	}
+
+	public int getOffset() {
+		return mOffset;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	public long getReceiveTime() {
+		return mReceiveTime;
+	}
+
+	public long getReceiveMillis() {
+		return mReceiveMillis;
+	}
+}
@@ -0,0 +1,261 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Feeds a recorded capture (see {@link CaptureFormat}) to a connection
+ * as if it came from the remote device, so field recordings can be run
+ * through the full framing and dispatch stack, e.g. with
+ * {@link BluetoothService#connect(Transport)} or a
+ * {@link TransportPacketConnection}.
+ *
+ * The records of one direction are replayed, by default the received
+ * bytes, either as fast as they are read ({@link #REPLAY_MAX_SPEED}) or
+ * each at its recorded time after the start of the replay
+ * ({@link #REPLAY_PACED}). A read returns at most one record, so the
+ * reads split the data as the recorded ones did.
+ *
+ * The segments are read through memory-mapped windows, so captures of
+ * any size replay without being loaded onto the heap. Written data is
+ * discarded. Connecting again after close() restarts the replay.
+ */
+public class ReplayTransport implements Transport {
+	/** Records are returned as fast as they are read */
+	public static final int REPLAY_MAX_SPEED = 0;
+	/** Records are returned at the recorded times relative to the first one */
+	public static final int REPLAY_PACED = 1;
+
+	/** Default bytes of a segment mapped at a time */
+	public static final int DefWindowSize = 16 * 1024 * 1024;
+
+	private final File[] mSegments;
+	private final int mReplayMode;
+	private int mDirection = CaptureFormat.DIR_IN;
+	private int mWindowSize = DefWindowSize;
+
+	/* replay state, only touched by the reading thread and connect(); close() only closes the file */
+	private int mSegment;
+	private RandomAccessFile mFile;
+	private long mFileSize;
+	/** the mapped part of the segment and its offset in the file */
+	private MappedByteBuffer mWindow;
+	private long mWindowStart;
+	/** offset of the next record header, or of the rest of the current record's bytes */
+	private long mPosition;
+	/** bytes of the current record not yet returned */
+	private int mRecordRemaining = 0;
+	/** nanoTime at the start of the replay and timestamp of the first record */
+	private long mReplayStart;
+	private long mFirstTimestamp = -1;
+
+	private volatile boolean mOpen = false;
+	private final Object mPacing = new Object();
+
+	/**
+	 * @param segments the segment files of the capture, in order
+	 * @param replayMode {@link #REPLAY_MAX_SPEED} or {@link #REPLAY_PACED}
+	 */
+	public ReplayTransport(File[] segments, int replayMode) {
+		if ((replayMode != REPLAY_MAX_SPEED) && (replayMode != REPLAY_PACED))
+			throw new IllegalArgumentException("unknown replay mode: "+replayMode);
+		if (segments.length == 0)
+			throw new IllegalArgumentException("no capture segments");
+		mSegments = segments.clone();
+		mReplayMode = replayMode;
+	}
+
+	public ReplayTransport(File capture, int replayMode) {
+		this(new File[] { capture }, replayMode);
+	}
+
+	/**
+	 * Selects which records are replayed. Takes effect with the next connect().
+	 * @param direction {@link CaptureFormat#DIR_IN} (default) to replay what
+	 * was received, {@link CaptureFormat#DIR_OUT} to replay what was sent
+	 */
+	public void setDirection(int direction) {
+		if ((direction != CaptureFormat.DIR_IN) && (direction != CaptureFormat.DIR_OUT))
+			throw new IllegalArgumentException("unknown direction: "+direction);
+		mDirection = direction;
+	}
+
+	/**
+	 * Sets how much of a segment is mapped at a time. Takes effect with the
+	 * next connect().
+	 * @param windowSize
+	 */
+	public void setWindowSize(int windowSize) {
+		if (windowSize < CaptureFormat.HeaderSize)
+			throw new IllegalArgumentException("window size too small: "+windowSize);
+		mWindowSize = windowSize;
+	}
+
+	/**
+	 * Opens the first segment and starts the replay clock.
+	 * @throws IOException if the segment cannot be read or is not a capture
+	 */
+	@Override
+	public synchronized void connect() throws IOException {
+		closeSegment();
+		mSegment = -1;
+		mRecordRemaining = 0;
+		mFirstTimestamp = -1;
+		openSegment(0);
+		mReplayStart = System.nanoTime();
+		mOpen = true;
+	}
+
+	private void openSegment(int index) throws IOException {
+		closeSegment();
+		mSegment = index;
+		mFile = new RandomAccessFile(mSegments[index], "r");
+		mFileSize = mFile.length();
+		mWindow = null;
+		if (!map(0, CaptureFormat.HeaderSize))
+			throw new IOException(mSegments[index]+" is too short for a capture");
+		mPosition = CaptureFormat.checkHeader(mWindow);
+	}
+
+	private void closeSegment() throws IOException {
+		mWindow = null;
+		if (mFile != null) {
+			mFile.close();
+			mFile = null;
+		}
+	}
+
+	/**
+	 * Makes sure the given range of the segment is mapped.
+	 * @param count at most the window size
+	 * @return false if the range extends beyond the end of the file
+	 */
+	private boolean map(long pos, int count) throws IOException {
+		if (pos + count > mFileSize)
+			return false;
+		if ((mWindow != null) && (pos >= mWindowStart) && (pos + count <= mWindowStart + mWindow.limit()))
+			return true;
+		final long size = Math.min(mWindowSize, mFileSize - pos);
+		mWindow = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, pos, size);
+		mWindow.order(ByteOrder.LITTLE_ENDIAN);
+		mWindowStart = pos;
+		return true;
+	}
+
+	/**
+	 * Returns the bytes of the next record of the replayed direction, or
+	 * as many as fit, waiting for its time in {@link #REPLAY_PACED} mode.
+	 * @return the number of bytes read, or -1 at the end of the capture
+	 */
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (!mOpen)
+			throw new IOException(getName()+" is not connected");
+		if ((mRecordRemaining == 0) && !nextRecord())
+			return -1;
+		int count = 0;
+		while ((count < length) && (mRecordRemaining > 0)) {
+			final int piece = Math.min(Math.min(length - count, mRecordRemaining), mWindowSize);
+			if (!map(mPosition, piece))
+				throw new IOException(getName()+": record runs past the end of "+mSegments[mSegment]);
+			mWindow.position((int) (mPosition - mWindowStart));
+			mWindow.get(buffer, offset + count, piece);
+			mPosition += piece;
+			mRecordRemaining -= piece;
+			count += piece;
+		}
+		return count;
+	}
+
+	/**
+	 * Moves to the next record of the replayed direction, across segments,
+	 * and waits for its time if pacing.
+	 * @return false at the end of the capture
+	 */
+	private boolean nextRecord() throws IOException {
+		while (true) {
+			if (!map(mPosition, CaptureFormat.RecordHeaderSize)
+					|| (mWindow.get((int) (mPosition - mWindowStart) + 8) == CaptureFormat.DIR_END)) {
+				/* end of this segment */
+				if (mSegment + 1 == mSegments.length)
+					return false;
+				openSegment(mSegment + 1);
+				continue;
+			}
+			final int at = (int) (mPosition - mWindowStart);
+			final long timestamp = mWindow.getLong(at);
+			final int direction = mWindow.get(at + 8);
+			final int length = mWindow.getInt(at + 9);
+			if ((length < 0) || (mPosition + CaptureFormat.RecordHeaderSize + length > mFileSize))
+				throw new IOException(getName()+": corrupt record in "+mSegments[mSegment]);
+			mPosition += CaptureFormat.RecordHeaderSize;
+			if ((direction != mDirection) || (length == 0)) {
+				mPosition += length;
+				continue;
+			}
+			mRecordRemaining = length;
+			if (mReplayMode == REPLAY_PACED)
+				waitFor(timestamp);
+			return true;
+		}
+	}
+
+	/**
+	 * Waits until the record's time has come, relative to the first record.
+	 */
+	private void waitFor(long timestamp) throws IOException {
+		if (mFirstTimestamp < 0)
+			mFirstTimestamp = timestamp;
+		final long due = mReplayStart + (timestamp - mFirstTimestamp);
+		synchronized (mPacing) {
+			long remaining;
+			while (mOpen && ((remaining = due - System.nanoTime()) > 0)) {
+				try {
+					mPacing.wait(remaining / 1000000, (int) (remaining % 1000000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(getName()+": interrupted");
+				}
+			}
+		}
+		if (!mOpen)
+			throw new IOException(getName()+" is closed");
+	}
+
+	/**
+	 * Discards the data; a replay only goes one way.
+	 */
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		if (!mOpen)
+			throw new IOException(getName()+" is not connected");
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Ends the replay; a read in progress fails.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		mOpen = false;
+		synchronized (mPacing) {
+			mPacing.notifyAll();
+		}
+		/* a mapping in use stays valid, but no further window can be mapped */
+		final RandomAccessFile file = mFile;
+		if (file != null)
+			file.close();
+	}
+
+	@Override
+	public String getName() {
+		return "Replay of " + mSegments[0].getName();
+	}
+}
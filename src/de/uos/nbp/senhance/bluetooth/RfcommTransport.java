@@ -0,0 +1,125 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * The Bluetooth RFCOMM transport, either to a service record given by
+ * its UUID or directly to an RFCOMM channel.
+ *
+ * Connecting to a channel uses the hidden
+ * BluetoothDevice.createRfcommSocket(int channel), as
+ * createRfcommSocketToServiceRecord() fails on some devices (e.g. the
+ * HTC Desire).
+ * @see <a href="https://ikw.uni-osnabrueck.de/trac/heartFelt/wiki/Software/Android#BluetoothSockets">BluetoothSockets</a>
+ */
+public class RfcommTransport extends StreamTransport {
+	private final BluetoothDevice mDevice;
+	/** null to connect to mChannel directly */
+	private final UUID mUUID;
+	private final int mChannel;
+	private volatile BluetoothSocket mSocket;
+
+	/**
+	 * @param device
+	 * @param channel the RFCOMM channel to connect to
+	 */
+	public RfcommTransport(BluetoothDevice device, int channel) {
+		super("RFCOMM");
+		mDevice = device;
+		mUUID = null;
+		mChannel = channel;
+	}
+
+	/**
+	 * @param device
+	 * @param uuid the service record to connect to
+	 */
+	public RfcommTransport(BluetoothDevice device, UUID uuid) {
+		super("RFCOMM");
+		mDevice = device;
+		mUUID = uuid;
+		mChannel = -1;
+	}
+
+	/**
+	 * Wraps a socket that is already connected, e.g. one that was accepted.
+	 * Connecting again reconnects to the socket's remote device on the
+	 * default channel (1).
+	 * 
+	 * If the socket's streams cannot be obtained, reading and writing
+	 * fail as if the connection had been lost.
+	 * @param socket
+	 */
+	public RfcommTransport(BluetoothSocket socket) {
+		super("RFCOMM");
+		mDevice = socket.getRemoteDevice();
+		mUUID = null;
+		mChannel = 1;
+		mSocket = socket;
+		try {
+			setStreams(socket.getInputStream(), socket.getOutputStream());
+		} catch (IOException e) {
+			/* reported by the first read */
+		}
+	}
+
+	/**
+	 * Creates a new socket and connects it. A socket is created for every
+	 * attempt, because for some reason, when first the target is unavailable
+	 * and then available, socket.connect() hangs (at least on 2.3.3).
+	 * Discovery is cancelled first, as it slows the connection down.
+	 * @throws IllegalStateException if the hidden createRfcommSocket() is not available
+	 */
+	@Override
+	public void connect() throws IOException {
+		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		if (adapter != null)
+			adapter.cancelDiscovery();
+		final BluetoothSocket socket = createSocket();
+		mSocket = socket;
+		socket.connect();
+		setStreams(socket.getInputStream(), socket.getOutputStream());
+	}
+
+	private BluetoothSocket createSocket() throws IOException {
+		if (mUUID != null)
+			return mDevice.createRfcommSocketToServiceRecord(mUUID);
+		try {
+			Method m = mDevice.getClass().getMethod("createRfcommSocket",
+					new Class[] { int.class });
+			return (BluetoothSocket) m.invoke(mDevice, mChannel);
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot create RFCOMM socket: "+e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * Closes the socket, which makes a blocked read or connect return.
+	 */
+	@Override
+	public void close() throws IOException {
+		final BluetoothSocket socket = mSocket;
+		mSocket = null;
+		setStreams(null, null);
+		if (socket != null)
+			socket.close();
+	}
+
+	public BluetoothDevice getDevice() {
+		return mDevice;
+	}
+
+	/**
+	 * @return the name of the remote device
+	 */
+	@Override
+	public String getName() {
+		return mDevice.getName();
+	}
+}
@@ -0,0 +1,29 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+
+import de.uos.nbp.senhance.bluetooth.PacketConnection.Packet;
+
+/**
+ * Learns the outcome of a {@link PacketConnection#sendAsync(Packet, SendCallback)}.
+ * 
+ * Exactly one of the two methods is called for every packet. They may be
+ * called on any thread (typically the one writing to the socket), so
+ * implementations should return quickly and must not block.
+ */
+public interface SendCallback {
+
+	/**
+	 * The encoded packet has been written to the socket.
+	 * @param pkt the packet as passed to sendAsync()
+	 */
+	void sendCompleted(Packet pkt);
+
+	/**
+	 * The packet could not be written, e.g. because the connection
+	 * was not established or was lost or closed before the write.
+	 * @param pkt the packet as passed to sendAsync()
+	 * @param cause
+	 */
+	void sendFailed(Packet pkt, IOException cause);
+}
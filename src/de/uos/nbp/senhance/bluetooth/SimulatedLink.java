@@ -0,0 +1,391 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * An in-memory link between two {@link Transport}s, {@link #getEndA()}
+ * and {@link #getEndB()}, that behaves like a radio link: bytes are
+ * carried in chunks, limited by a bandwidth cap, delayed by a latency
+ * with jitter, occasionally corrupted, and the link may be dropped at
+ * random or on demand. One end replaces the RFCOMM socket (e.g. via
+ * {@link BluetoothService#connect(Transport)}), while test code plays the
+ * device on the other.
+ *
+ * All random decisions (corrupted bytes, jitter, disconnects) come from
+ * a generator per direction seeded from the link's seed, and are made as
+ * the data is written, so the same seed and the same writes give the
+ * same faults in the same places. Delivery times follow the wall clock,
+ * so how the receiver's reads split the data can vary between runs.
+ *
+ * By default the link is perfect: unlimited bandwidth, no latency and
+ * no faults. Settings take effect for data written afterwards.
+ */
+public class SimulatedLink {
+	/** Default most bytes carried per chunk */
+	public static final int DefChunkSize = 1024;
+	/** Default most bytes in flight per direction before writes block */
+	public static final int DefBufferSize = 8192;
+
+	private final End mEndA;
+	private final End mEndB;
+
+	/* all state is guarded by this */
+	private boolean mUp = false;
+	private boolean mConnectable = true;
+	private int mChunkSize = DefChunkSize;
+	private int mBufferSize = DefBufferSize;
+	/** bytes per second, 0 for unlimited */
+	private int mBandwidth = 0;
+	private long mLatencyNanos = 0;
+	private long mJitterNanos = 0;
+	private double mCorruptionRate = 0;
+	private double mDisconnectProbability = 0;
+	private int mDisconnects = 0;
+	private long mCorruptedBytes = 0;
+
+	/**
+	 * @param seed determines all random decisions of the link
+	 */
+	public SimulatedLink(long seed) {
+		final Pipe aToB = new Pipe(new Random(seed));
+		final Pipe bToA = new Pipe(new Random(~seed));
+		mEndA = new End("SimulatedLink A", bToA, aToB);
+		mEndB = new End("SimulatedLink B", aToB, bToA);
+	}
+
+	public End getEndA() {
+		return mEndA;
+	}
+
+	public End getEndB() {
+		return mEndB;
+	}
+
+	/**
+	 * @param bytesPerSecond the most bytes carried per second in each direction, 0 for unlimited
+	 */
+	public synchronized void setBandwidth(int bytesPerSecond) {
+		if (bytesPerSecond < 0)
+			throw new IllegalArgumentException("negative bandwidth");
+		mBandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * @param latencyMillis delay of every chunk after it has been transmitted
+	 * @param jitterMillis most extra delay, chosen uniformly per chunk; chunks are never reordered
+	 */
+	public synchronized void setLatency(long latencyMillis, long jitterMillis) {
+		if ((latencyMillis < 0) || (jitterMillis < 0))
+			throw new IllegalArgumentException("negative latency");
+		mLatencyNanos = latencyMillis * 1000000;
+		mJitterNanos = jitterMillis * 1000000;
+	}
+
+	/**
+	 * @param chunkSize the most bytes carried per chunk, so the most a single read returns
+	 * @param bufferSize the most bytes in flight per direction before writes block
+	 */
+	public synchronized void setChunking(int chunkSize, int bufferSize) {
+		if ((chunkSize < 1) || (bufferSize < chunkSize))
+			throw new IllegalArgumentException("invalid chunking parameters");
+		mChunkSize = chunkSize;
+		mBufferSize = bufferSize;
+	}
+
+	/**
+	 * @param perByte probability that a byte arrives with one bit flipped
+	 */
+	public synchronized void setCorruptionRate(double perByte) {
+		if ((perByte < 0) || (perByte >= 1))
+			throw new IllegalArgumentException("corruption rate must be in [0, 1)");
+		mCorruptionRate = perByte;
+		mEndA.mmOut.scheduleCorruption(perByte);
+		mEndB.mmOut.scheduleCorruption(perByte);
+	}
+
+	/**
+	 * @param perChunk probability that the link drops while a chunk is written
+	 */
+	public synchronized void setDisconnectProbability(double perChunk) {
+		if ((perChunk < 0) || (perChunk > 1))
+			throw new IllegalArgumentException("disconnect probability must be in [0, 1]");
+		mDisconnectProbability = perChunk;
+	}
+
+	/**
+	 * @param connectable false to make connect() fail on both ends, as if the device was out of range
+	 */
+	public synchronized void setConnectable(boolean connectable) {
+		mConnectable = connectable;
+	}
+
+	/**
+	 * Drops the link: data in flight is lost and blocked or later reads
+	 * and writes on both ends fail, until an end connects again.
+	 */
+	public synchronized void disconnect() {
+		if (!mUp)
+			return;
+		mUp = false;
+		mDisconnects++;
+		notifyAll();
+	}
+
+	public synchronized boolean isUp() {
+		return mUp;
+	}
+
+	/**
+	 * @return the number of times the link has dropped
+	 */
+	public synchronized int getDisconnects() {
+		return mDisconnects;
+	}
+
+	/**
+	 * @return the number of bytes corrupted so far
+	 */
+	public synchronized long getCorruptedBytes() {
+		return mCorruptedBytes;
+	}
+
+	/** A chunk on its way, delivered in full or in parts. */
+	private static class Chunk {
+		final byte[] mData;
+		int mPosition = 0;
+		final long mDeliveryTime;
+
+		Chunk(byte[] data, long deliveryTime) {
+			mData = data;
+			mDeliveryTime = deliveryTime;
+		}
+	}
+
+	/** One direction of the link, guarded by the link. */
+	private static class Pipe {
+		final Random mmRandom;
+		final LinkedList<Chunk> mmChunks = new LinkedList<Chunk>();
+		/** bytes written but not yet read */
+		int mmInFlight = 0;
+		/** nanoTime at which the transmitter is free again */
+		long mmTransmitterFree = 0;
+		/** delivery time of the last chunk, so chunks stay in order */
+		long mmLastDelivery = 0;
+		/** bytes to pass before the next one is corrupted, -1 for none */
+		long mmNextCorruption = -1;
+		/** the writing end has been closed; reads return -1 once the data is read */
+		boolean mmEndOfStream = false;
+		/** the reading end has been closed; writes fail */
+		boolean mmReaderClosed = false;
+
+		Pipe(Random random) {
+			mmRandom = random;
+		}
+
+		/**
+		 * Draws the gap to the next corrupted byte, geometrically distributed
+		 * so that each byte is hit with the given probability.
+		 */
+		void scheduleCorruption(double perByte) {
+			if (perByte <= 0) {
+				mmNextCorruption = -1;
+				return;
+			}
+			final double uniform = 1.0 - mmRandom.nextDouble();
+			mmNextCorruption = (long) (Math.log(uniform) / Math.log(1.0 - perByte));
+		}
+
+		void clear() {
+			mmChunks.clear();
+			mmInFlight = 0;
+			mmEndOfStream = false;
+			mmReaderClosed = false;
+		}
+	}
+
+	/** One end of the link. */
+	public class End implements Transport {
+		private final String mmName;
+		private final Pipe mmIn;
+		private final Pipe mmOut;
+		private boolean mmOpen = false;
+
+		private End(String name, Pipe in, Pipe out) {
+			mmName = name;
+			mmIn = in;
+			mmOut = out;
+		}
+
+		/**
+		 * Brings the link up if it is down, dropping anything left of the
+		 * previous connection.
+		 * @throws IOException if the link is not connectable
+		 */
+		@Override
+		public void connect() throws IOException {
+			synchronized (SimulatedLink.this) {
+				if (!mConnectable)
+					throw new IOException(mmName+": connection refused");
+				if (!mUp) {
+					mEndA.mmIn.clear();
+					mEndB.mmIn.clear();
+					mUp = true;
+				} else {
+					mmIn.clear();
+					mmOut.clear();
+				}
+				mmOpen = true;
+				SimulatedLink.this.notifyAll();
+			}
+		}
+
+		private void checkUsable() throws IOException {
+			if (!mmOpen)
+				throw new IOException(mmName+" is closed");
+			if (!mUp)
+				throw new IOException(mmName+": link disconnected");
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			final SimulatedLink link = SimulatedLink.this;
+			synchronized (link) {
+				while (true) {
+					checkUsable();
+					final Chunk head = mmIn.mmChunks.peek();
+					if (head == null) {
+						if (mmIn.mmEndOfStream)
+							return -1;
+						waitOnLink(0);
+						continue;
+					}
+					final long now = System.nanoTime();
+					if (head.mDeliveryTime > now) {
+						waitOnLink(head.mDeliveryTime - now);
+						continue;
+					}
+					/* everything that has arrived, up to length */
+					int count = 0;
+					Chunk chunk;
+					while ((count < length) && ((chunk = mmIn.mmChunks.peek()) != null)
+							&& (chunk.mDeliveryTime <= now)) {
+						final int take = Math.min(length - count, chunk.mData.length - chunk.mPosition);
+						System.arraycopy(chunk.mData, chunk.mPosition, buffer, offset + count, take);
+						chunk.mPosition += take;
+						count += take;
+						if (chunk.mPosition == chunk.mData.length)
+							mmIn.mmChunks.removeFirst();
+					}
+					mmIn.mmInFlight -= count;
+					link.notifyAll();
+					return count;
+				}
+			}
+		}
+
+		/**
+		 * Splits the data into chunks and puts them on their way, blocking
+		 * while the link's buffer is full.
+		 */
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			final SimulatedLink link = SimulatedLink.this;
+			synchronized (link) {
+				final Pipe out = mmOut;
+				int pos = offset;
+				final int end = offset + length;
+				while (pos < end) {
+					checkUsable();
+					if (out.mmReaderClosed)
+						throw new IOException(mmName+": peer closed");
+					final int count = Math.min(mChunkSize, end - pos);
+					if ((out.mmInFlight > 0) && (out.mmInFlight + count > mBufferSize)) {
+						waitOnLink(0);
+						continue;
+					}
+					if ((mDisconnectProbability > 0) && (out.mmRandom.nextDouble() < mDisconnectProbability)) {
+						disconnect();
+						throw new IOException(mmName+": link disconnected");
+					}
+					final byte[] data = new byte[count];
+					System.arraycopy(buffer, pos, data, 0, count);
+					corrupt(out, data);
+					pos += count;
+
+					final long now = System.nanoTime();
+					final long start = Math.max(now, out.mmTransmitterFree);
+					out.mmTransmitterFree = (mBandwidth > 0) ? start + count * 1000000000L / mBandwidth : start;
+					long delivery = out.mmTransmitterFree + mLatencyNanos;
+					if (mJitterNanos > 0)
+						delivery += (long) (out.mmRandom.nextDouble() * mJitterNanos);
+					delivery = Math.max(delivery, out.mmLastDelivery);
+					out.mmLastDelivery = delivery;
+					out.mmChunks.add(new Chunk(data, delivery));
+					out.mmInFlight += count;
+					link.notifyAll();
+				}
+			}
+		}
+
+		private void corrupt(Pipe out, byte[] data) {
+			if (out.mmNextCorruption < 0)
+				return;
+			long next = out.mmNextCorruption;
+			while (next < data.length) {
+				data[(int) next] ^= (byte) (1 << out.mmRandom.nextInt(8));
+				mCorruptedBytes++;
+				out.scheduleCorruption(mCorruptionRate);
+				next += 1 + out.mmNextCorruption;
+			}
+			out.mmNextCorruption = next - data.length;
+		}
+
+		/**
+		 * Waits on the link's monitor, which must be held.
+		 * @param nanos most time to wait, 0 to wait for a notification
+		 */
+		private void waitOnLink(long nanos) throws IOException {
+			try {
+				if (nanos == 0)
+					SimulatedLink.this.wait();
+				else
+					SimulatedLink.this.wait(nanos / 1000000, (int) (nanos % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(mmName+": interrupted");
+			}
+		}
+
+		/**
+		 * Does nothing, written data is on its way already.
+		 */
+		@Override
+		public void flush() {
+		}
+
+		/**
+		 * Closes this end; the other end reads the data in flight and then
+		 * the end of the stream.
+		 */
+		@Override
+		public void close() {
+			synchronized (SimulatedLink.this) {
+				if (!mmOpen)
+					return;
+				mmOpen = false;
+				mmOut.mmEndOfStream = true;
+				mmIn.mmReaderClosed = true;
+				mmIn.mmChunks.clear();
+				mmIn.mmInFlight = 0;
+				SimulatedLink.this.notifyAll();
+			}
+		}
+
+		@Override
+		public String getName() {
+			return mmName;
+		}
+	}
+}
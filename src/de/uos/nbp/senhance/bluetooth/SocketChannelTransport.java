@@ -0,0 +1,115 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A transport over a blocking NIO socket channel. Unlike
+ * {@link SocketTransport}, a thread blocked in a read can also be
+ * woken by interrupting it, which closes the channel.
+ *
+ * The byte arrays passed to read and write are wrapped in buffers that
+ * are kept as long as the same array is used again, so the usual case
+ * of a connection reading into and writing from the same few buffers
+ * allocates nothing per call.
+ */
+public class SocketChannelTransport implements Transport {
+	/** null if the channel was accepted and cannot be reconnected */
+	private final SocketAddress mAddress;
+	private volatile SocketChannel mChannel;
+	/** wrappers of the arrays last read into and written from */
+	private ByteBuffer mReadBuffer;
+	private ByteBuffer mWriteBuffer;
+
+	public SocketChannelTransport(SocketAddress address) {
+		mAddress = address;
+	}
+
+	public SocketChannelTransport(String host, int port) {
+		this(new InetSocketAddress(host, port));
+	}
+
+	/**
+	 * Wraps a channel that is already connected, e.g. one returned by
+	 * ServerSocketChannel.accept(). It cannot be reconnected once closed.
+	 * @param channel
+	 */
+	public SocketChannelTransport(SocketChannel channel) throws IOException {
+		mAddress = null;
+		mChannel = channel;
+		channel.configureBlocking(true);
+		channel.socket().setTcpNoDelay(true);
+	}
+
+	@Override
+	public void connect() throws IOException {
+		if (mAddress == null) {
+			if (mChannel == null)
+				throw new IOException(getName()+" is closed and cannot be reopened");
+			return;
+		}
+		final SocketChannel channel = SocketChannel.open();
+		mChannel = channel;
+		try {
+			channel.socket().setTcpNoDelay(true);
+			channel.connect(mAddress);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		final SocketChannel channel = getChannel();
+		ByteBuffer buf = mReadBuffer;
+		if ((buf == null) || (buf.array() != buffer))
+			buf = mReadBuffer = ByteBuffer.wrap(buffer);
+		buf.limit(offset + length).position(offset);
+		return channel.read(buf);
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		final SocketChannel channel = getChannel();
+		ByteBuffer buf = mWriteBuffer;
+		if ((buf == null) || (buf.array() != buffer))
+			buf = mWriteBuffer = ByteBuffer.wrap(buffer);
+		buf.limit(offset + length).position(offset);
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	/**
+	 * Does nothing, the channel does not buffer.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() throws IOException {
+		final SocketChannel channel = mChannel;
+		mChannel = null;
+		if (channel != null)
+			channel.close();
+	}
+
+	private SocketChannel getChannel() throws IOException {
+		final SocketChannel channel = mChannel;
+		if (channel == null)
+			throw new IOException(getName()+" is not connected");
+		return channel;
+	}
+
+	@Override
+	public String getName() {
+		if (mAddress != null)
+			return mAddress.toString();
+		final SocketChannel channel = mChannel;
+		return (channel != null) ? String.valueOf(channel.socket().getRemoteSocketAddress()) : "closed channel";
+	}
+}
@@ -0,0 +1,83 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * A transport over a TCP socket, e.g. to a gateway or to a test
+ * peer on the same machine.
+ *
+ * Nagle's algorithm is disabled, as packets are small and written
+ * one frame at a time.
+ */
+public class SocketTransport extends StreamTransport {
+	/** Default msecs to wait for a connection to be established */
+	public static final int DefConnectTimeout = 10000;
+
+	/** null if the socket was accepted and cannot be reconnected */
+	private final SocketAddress mAddress;
+	private final int mConnectTimeout;
+	private volatile Socket mSocket;
+
+	/**
+	 * @param address the remote end
+	 * @param connectTimeout msecs to wait for the connection, 0 for no timeout
+	 */
+	public SocketTransport(SocketAddress address, int connectTimeout) {
+		super(address.toString());
+		mAddress = address;
+		mConnectTimeout = connectTimeout;
+	}
+
+	public SocketTransport(String host, int port) {
+		this(new InetSocketAddress(host, port), DefConnectTimeout);
+	}
+
+	/**
+	 * Wraps a socket that is already connected, e.g. one returned by
+	 * ServerSocket.accept(). It cannot be reconnected once closed.
+	 * @param socket
+	 */
+	public SocketTransport(Socket socket) throws IOException {
+		super(String.valueOf(socket.getRemoteSocketAddress()));
+		mAddress = null;
+		mConnectTimeout = 0;
+		mSocket = socket;
+		socket.setTcpNoDelay(true);
+		setStreams(socket.getInputStream(), socket.getOutputStream());
+	}
+
+	@Override
+	public void connect() throws IOException {
+		if (mAddress == null) {
+			/* an accepted socket can only be used as long as it is open */
+			super.connect();
+			return;
+		}
+		final Socket socket = new Socket();
+		mSocket = socket;
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(mAddress, mConnectTimeout);
+			setStreams(socket.getInputStream(), socket.getOutputStream());
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		final Socket socket = mSocket;
+		mSocket = null;
+		setStreams(null, null);
+		if (socket != null)
+			socket.close();
+	}
+
+	public Socket getSocket() {
+		return mSocket;
+	}
+}
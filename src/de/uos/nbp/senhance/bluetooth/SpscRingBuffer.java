@@ -0,0 +1,185 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue for exactly one producer thread and
+ * one consumer thread, e.g. the thread reading the socket and the
+ * thread consuming packets.
+ *
+ * Items are kept in a fixed array of slots that is allocated once,
+ * so passing an item costs no allocation and no lock. What a thread
+ * does when it has to wait (consumer on an empty ring, producer on a
+ * full one) is set by the {@link WaitStrategy}.
+ *
+ * NB: none of the methods may be called concurrently from more than one
+ * producer or more than one consumer.
+ *
+ * @param <T> type of the items passed
+ */
+public class SpscRingBuffer<T> {
+
+	public enum WaitStrategy {
+		/** Park the waiting thread until the other side signals it. Lowest CPU use. */
+		Block,
+		/** Spin with Thread.yield() in between. Lower latency, burns some CPU. */
+		Yield,
+		/** Spin without ever giving up the CPU. Lowest latency, burns a core. */
+		BusySpin
+	}
+
+	private final Object[] mSlots;
+	private final int mMask;
+	private final WaitStrategy mWaitStrategy;
+
+	/** sequence number of the next slot to be read, only written by the consumer */
+	private volatile long mHead = 0;
+	/** sequence number of the next slot to be written, only written by the producer */
+	private volatile long mTail = 0;
+
+	/** producer's last view of mHead, saves reading the volatile on every offer */
+	private long mCachedHead = 0;
+	/** consumer's last view of mTail, saves reading the volatile on every poll */
+	private long mCachedTail = 0;
+
+	/** threads parked in Block strategy, waiting for the other side */
+	private volatile Thread mWaitingConsumer;
+	private volatile Thread mWaitingProducer;
+
+	/**
+	 * @param capacity number of slots, rounded up to the next power of two
+	 * @param waitStrategy how {@link #put(Object)} and {@link #take()} wait
+	 */
+	public SpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		mSlots = new Object[size];
+		mMask = size - 1;
+		mWaitStrategy = waitStrategy;
+	}
+
+	public SpscRingBuffer(int capacity) {
+		this(capacity, WaitStrategy.Block);
+	}
+
+	/**
+	 * Adds an item if there is a free slot. Producer only.
+	 * @param item must not be null
+	 * @return false if the ring is full
+	 */
+	public boolean offer(T item) {
+		final long tail = mTail;
+		if (tail - mCachedHead >= mSlots.length) {
+			mCachedHead = mHead;
+			if (tail - mCachedHead >= mSlots.length)
+				return false;
+		}
+		mSlots[(int) tail & mMask] = item;
+		mTail = tail + 1; /* publishes the slot */
+		if (mWaitStrategy == WaitStrategy.Block) {
+			Thread waiter = mWaitingConsumer;
+			if (waiter != null)
+				LockSupport.unpark(waiter);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds an item, waiting for a free slot if the ring is full. Producer only.
+	 * @param item must not be null
+	 * @throws InterruptedException
+	 */
+	public void put(T item) throws InterruptedException {
+		while (!offer(item)) {
+			if (mWaitStrategy == WaitStrategy.Block) {
+				mWaitingProducer = Thread.currentThread();
+				/* re-check after announcing ourselves, so a concurrent poll can't be missed */
+				if (isFull())
+					LockSupport.park(this);
+				mWaitingProducer = null;
+			} else {
+				idle();
+			}
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Removes the oldest item, if any. Consumer only.
+	 * @return the item, or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		final long head = mHead;
+		if (head >= mCachedTail) {
+			mCachedTail = mTail;
+			if (head >= mCachedTail)
+				return null;
+		}
+		final int index = (int) head & mMask;
+		T item = (T) mSlots[index];
+		mSlots[index] = null;
+		mHead = head + 1; /* frees the slot */
+		if (mWaitStrategy == WaitStrategy.Block) {
+			Thread waiter = mWaitingProducer;
+			if (waiter != null)
+				LockSupport.unpark(waiter);
+		}
+		return item;
+	}
+
+	/**
+	 * Removes the oldest item, waiting for one if the ring is empty. Consumer only.
+	 * @return the item
+	 * @throws InterruptedException
+	 */
+	public T take() throws InterruptedException {
+		T item;
+		while ((item = poll()) == null) {
+			if (mWaitStrategy == WaitStrategy.Block) {
+				mWaitingConsumer = Thread.currentThread();
+				/* re-check after announcing ourselves, so a concurrent offer can't be missed */
+				if (isEmpty())
+					LockSupport.park(this);
+				mWaitingConsumer = null;
+			} else {
+				idle();
+			}
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+		return item;
+	}
+
+	private void idle() {
+		if (mWaitStrategy == WaitStrategy.Yield)
+			Thread.yield();
+	}
+
+	public boolean isEmpty() {
+		return mHead >= mTail;
+	}
+
+	public boolean isFull() {
+		return mTail - mHead >= mSlots.length;
+	}
+
+	/**
+	 * @return the number of items currently queued (a snapshot)
+	 */
+	public int size() {
+		return (int) (mTail - mHead);
+	}
+
+	public int capacity() {
+		return mSlots.length;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return mWaitStrategy;
+	}
+}
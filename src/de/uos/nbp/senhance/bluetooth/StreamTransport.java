@@ -0,0 +1,100 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A transport over an input and an output stream, e.g. of a pipe, a
+ * serial port or a file being replayed.
+ *
+ * Streams given to the constructor are open from the start and cannot be
+ * reopened once closed. Subclasses that create their streams on
+ * {@link #connect()} pass them to {@link #setStreams(InputStream, OutputStream)}.
+ */
+public class StreamTransport implements Transport {
+	private final String mName;
+	private volatile InputStream mInStream;
+	private volatile OutputStream mOutStream;
+
+	/**
+	 * @param in stream the remote end's bytes are read from
+	 * @param out stream written bytes go to, or null to discard them
+	 * @param name
+	 */
+	public StreamTransport(InputStream in, OutputStream out, String name) {
+		mName = name;
+		mInStream = in;
+		mOutStream = out;
+	}
+
+	/**
+	 * For subclasses that open their streams in {@link #connect()}.
+	 * @param name
+	 */
+	protected StreamTransport(String name) {
+		mName = name;
+	}
+
+	/**
+	 * @throws IOException if the streams have been closed
+	 */
+	@Override
+	public void connect() throws IOException {
+		if (mInStream == null)
+			throw new IOException(mName+" is closed and cannot be reopened");
+	}
+
+	protected void setStreams(InputStream in, OutputStream out) {
+		mInStream = in;
+		mOutStream = out;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		final InputStream in = mInStream;
+		if (in == null)
+			throw new IOException(mName+" is not connected");
+		return in.read(buffer, offset, length);
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		final InputStream in = mInStream;
+		final OutputStream out = mOutStream;
+		if (in == null)
+			throw new IOException(mName+" is not connected");
+		if (out != null)
+			out.write(buffer, offset, length);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		final OutputStream out = mOutStream;
+		if (out != null)
+			out.flush();
+	}
+
+	/**
+	 * Closes both streams.
+	 */
+	@Override
+	public void close() throws IOException {
+		final InputStream in = mInStream;
+		final OutputStream out = mOutStream;
+		mInStream = null;
+		mOutStream = null;
+		try {
+			if (in != null)
+				in.close();
+		} finally {
+			if (out != null)
+				out.close();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+}
@@ -0,0 +1,63 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * A bidirectional byte stream to a remote device, e.g. an RFCOMM socket,
+ * a TCP connection or a pair of streams.
+ *
+ * The packet stack only ever reads blocks of bytes from a transport and
+ * writes encoded frames to it, so anything that can be connected, read,
+ * written and closed can carry packets: {@link BluetoothService} runs over
+ * a transport on Android and {@link TransportPacketConnection} does the
+ * same on a plain JVM.
+ *
+ * A transport is read by one thread at a time and written by one thread
+ * at a time; {@link #close()} may be called from any thread and must make
+ * a blocked read or write return with an IOException.
+ */
+public interface Transport {
+
+	/**
+	 * Establishes the connection, blocking until it is up. May be called
+	 * again after {@link #close()} to reconnect, if the transport supports it.
+	 * @throws IOException if this attempt failed; it may be retried
+	 */
+	void connect() throws IOException;
+
+	/**
+	 * Reads whatever is available, blocking until at least one byte is.
+	 * @param buffer
+	 * @param offset
+	 * @param length the most bytes to read
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 * @throws IOException if the connection fails or is closed
+	 */
+	int read(byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Writes all of the given bytes.
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @throws IOException if the connection fails or is closed
+	 */
+	void write(byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Pushes out any bytes the transport buffers.
+	 * @throws IOException
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Closes the connection. Does nothing if it is not open.
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+
+	/**
+	 * @return a human-readable name of the remote end, e.g. the device name or address
+	 */
+	String getName();
+}
@@ -0,0 +1,446 @@
+package de.uos.nbp.senhance.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A framed packet connection over any {@link Transport} that needs
+ * nothing from Android, e.g. for a gateway collecting sensor streams
+ * over TCP or for load tests on a plain JVM. It decodes with the same
+ * {@link Framer}s as {@link FramedPacketConnection}, so both ends of a
+ * link can share their framing code.
+ *
+ * There is no Handler: one reader thread per connection connects the
+ * transport, reads it and decodes the data, and all
+ * {@link PacketConnectionHandler} callbacks except connectionClosed()
+ * are called on that thread. Received packets come from a pool and
+ * should be released as described in
+ * {@link PacketConnectionHandler#packetReceived(Packet)}.
+ *
+ * A connection that is lost is not reconnected automatically; the
+ * handler may call {@link #connect()} again from connectionLost().
+ */
+public class TransportPacketConnection implements PacketConnection, Framer.Sink {
+	private final Transport mTransport;
+	private final PacketConnectionHandler mConnHandler;
+	private final int mMaxPacketSize;
+	private final Framer mFramer;
+	private final PacketPool mPacketPool;
+	/** frames are encoded into this, grown if a packet needs more */
+	private byte[] mSendBuffer;
+	/** NB: written by the reader thread only, so other threads may see stale counts */
+	private final int[] mDropCounts = new int[Framer.DROP_REASONS];
+
+	private volatile State mState = State.Disconnected;
+	/** the reader running, null once it is about to report the end of the connection or has been closed; guarded by this */
+	private Reader mReader;
+	/** creates the reader thread, null for a plain thread */
+	private volatile ThreadFactory mThreadFactory;
+	/** if set, records the bytes read from and written to the transport */
+	private volatile CaptureRecorder mCaptureRecorder;
+
+	/** Number of times to try a failed connection attempt */
+	private int mMaxContiguousConnectionFailures = 3;
+	/** msecs between repeated connection attempts */
+	private long mConnectionAttemptInterval = 1000;
+	/** the most bytes read from the transport in one go */
+	private int mReceiveChunkSize = ReceiveChunk.DefChunkSize;
+
+	/** time in milliseconds since Unix epoch at which the data being decoded was received */
+	private long mReceiveTime;
+	/** System.nanoTime() in milliseconds at which the data being decoded was received */
+	private long mReceiveMillis;
+
+	/**
+	 * @param transport carries the frames; used by this connection only
+	 * @param connHandler receives packets and status changes
+	 * @param maxPacketSize this is the size of the maximum expected packet on this connection
+	 * @param framer splits the received bytes into packets and frames the packets sent; used by this connection only
+	 */
+	public TransportPacketConnection(Transport transport, PacketConnectionHandler connHandler,
+			int maxPacketSize, Framer framer) {
+		mTransport = transport;
+		mConnHandler = connHandler;
+		mMaxPacketSize = maxPacketSize;
+		mFramer = framer;
+		mPacketPool = new PacketPool(maxPacketSize);
+		/* received packets hold the trailer until the frame is checked */
+		mPacketPool.setCapacityLimit(maxPacketSize + framer.getTrailerSize());
+		mSendBuffer = new byte[framer.maxEncodedLength(maxPacketSize)];
+	}
+
+	/**
+	 * Uses the default escape framing of {@link FramedPacketConnection}.
+	 */
+	public TransportPacketConnection(Transport transport, PacketConnectionHandler connHandler) {
+		this(transport, connHandler, DefMaxPacketSize, new EscapeFramer());
+	}
+
+	/**
+	 * Starts the reader thread, which connects the transport and then
+	 * reads from it. Returns straight away; the handler learns the outcome.
+	 * Does nothing if the connection is already being established or up,
+	 * but may be called from connectFailed() and connectionLost(), and
+	 * right after close().
+	 */
+	@Override
+	public synchronized void connect() {
+		if (mReader != null)
+			return;
+		final Reader reader = new Reader();
+		final ThreadFactory factory = mThreadFactory;
+		reader.mmThread = (factory != null) ? factory.newThread(reader)
+				: new Thread(reader, "TransportPacketConnection " + mTransport.getName());
+		mReader = reader;
+		reader.mmThread.start();
+	}
+
+	/**
+	 * Same as {@link #connect()}: the transport determines where to
+	 * connect to, so the port is ignored.
+	 */
+	@Override
+	public void connect(int port) {
+		connect();
+	}
+
+	/**
+	 * Same as {@link #connect()}: the transport determines where to
+	 * connect to, so the UUID is ignored.
+	 */
+	@Override
+	public void connect(UUID uuid) {
+		connect();
+	}
+
+	/**
+	 * Closes the transport, waits for the reader thread to stop (unless
+	 * called on it, e.g. from a handler callback) and calls
+	 * connectionClosed() on the calling thread. The connection may be
+	 * connected again afterwards.
+	 */
+	public void close() {
+		final Reader reader;
+		synchronized (this) {
+			reader = mReader;
+			mReader = null;
+			if (reader != null)
+				reader.mmClosed = true;
+			mState = State.Disconnected;
+		}
+		try {
+			mTransport.close();
+		} catch (IOException ignored) {}
+		if ((reader != null) && (reader.mmThread != Thread.currentThread())) {
+			/* also ends a wait between connection attempts */
+			reader.mmThread.interrupt();
+			boolean interrupted = false;
+			while (reader.mmThread.isAlive()) {
+				try {
+					reader.mmThread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		mConnHandler.connectionClosed();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return ((mState != State.Disconnected) && (mState != State.Dead));
+	}
+
+	/**
+	 * Forgets any partially received frame. Only call this on the reader
+	 * thread, e.g. from a handler callback.
+	 */
+	@Override
+	public void discard() {
+		if (isConnected())
+			mFramer.reset();
+	}
+
+	/**
+	 * Frames the packet and writes it to the transport on the calling
+	 * thread. The frame is built in a buffer that is reused for every
+	 * send, so concurrent sends are serialised.
+	 * @throws IOException if not connected or the write fails
+	 */
+	@Override
+	public synchronized void send(Packet pkt) throws IOException {
+		if (!isConnected())
+			throw new IOException("TransportPacketConnection is not connected");
+		final int length = encode(pkt);
+		mTransport.write(mSendBuffer, 0, length);
+		final CaptureRecorder recorder = mCaptureRecorder;
+		if (recorder != null)
+			recorder.record(CaptureFormat.DIR_OUT, mSendBuffer, 0, length);
+	}
+
+	/**
+	 * Like {@link #send(Packet)}, which it calls; the callback is told
+	 * of the outcome before this returns.
+	 */
+	@Override
+	public void sendAsync(Packet pkt, SendCallback callback) {
+		try {
+			send(pkt);
+		} catch (IOException e) {
+			callback.sendFailed(pkt, e);
+			return;
+		}
+		callback.sendCompleted(pkt);
+	}
+
+	/**
+	 * Encodes the packet as a frame into mSendBuffer.
+	 * @param pkt
+	 * @return the length of the frame
+	 */
+	private int encode(Packet pkt) {
+		final int frameLength = mFramer.maxEncodedLength(pkt.getLength());
+		if (mSendBuffer.length < frameLength)
+			mSendBuffer = new byte[frameLength];
+		return mFramer.encode(pkt, mSendBuffer, 0);
+	}
+
+	public void flush() throws IOException {
+		mTransport.flush();
+	}
+
+	/**
+	 * Called by the framer when a frame starts.
+	 */
+	@Override
+	public Packet obtainPacket() {
+		Packet pkt = mPacketPool.obtain();
+		pkt.mStartTime = mReceiveTime;
+		pkt.packetStartMillis = mReceiveMillis;
+		return pkt;
+	}
+
+	/**
+	 * Called by the framer with a complete packet.
+	 */
+	@Override
+	public void frameReceived(Packet pkt) {
+		pkt.mEndTime = mReceiveTime;
+		pkt.packetEndMillis = mReceiveMillis;
+		mConnHandler.packetReceived(pkt);
+	}
+
+	/**
+	 * Called by the framer when a frame is discarded.
+	 */
+	@Override
+	public void frameDropped(int reason) {
+		mDropCounts[reason]++;
+	}
+
+	/**
+	 * @param reason one of the Framer.DROP_ constants
+	 * @return the number of received frames dropped for the given reason
+	 */
+	public int getDropCount(int reason) {
+		return mDropCounts[reason];
+	}
+
+	/**
+	 * Selects the integrity check appended to sent frames and expected
+	 * on received ones. Both ends must use the same mode. Must be set
+	 * before connecting.
+	 * @param crcMode {@link AbstractFramer#CRC_NONE}, {@link AbstractFramer#CRC_16} or {@link AbstractFramer#CRC_32}
+	 * @throws IllegalStateException if the framer is not an {@link AbstractFramer}
+	 */
+	public void setCrcMode(int crcMode) {
+		if (!(mFramer instanceof AbstractFramer))
+			throw new IllegalStateException("Framer does not support CRC trailers");
+		((AbstractFramer) mFramer).setCrcMode(crcMode);
+		mPacketPool.setCapacityLimit(mMaxPacketSize + mFramer.getTrailerSize());
+		mFramer.reset();
+	}
+
+	public Framer getFramer() {
+		return mFramer;
+	}
+
+	public Transport getTransport() {
+		return mTransport;
+	}
+
+	public String getName() {
+		return mTransport.getName();
+	}
+
+	public int getMaxContiguousConnectionFailures() {
+		return mMaxContiguousConnectionFailures;
+	}
+
+	/**
+	 * @param maxContiguousConnectionFailures attempts before connectFailed() is called, -1 to try forever
+	 */
+	public void setMaxContiguousConnectionFailures(int maxContiguousConnectionFailures) {
+		mMaxContiguousConnectionFailures = maxContiguousConnectionFailures;
+	}
+
+	public long getConnectionAttemptInterval() {
+		return mConnectionAttemptInterval;
+	}
+
+	public void setConnectionAttemptInterval(long connectionAttemptInterval) {
+		mConnectionAttemptInterval = connectionAttemptInterval;
+	}
+
+	/**
+	 * Sets the most bytes read from the transport in one go. Takes effect
+	 * with the next connection.
+	 * @param receiveChunkSize
+	 */
+	public void setReceiveChunkSize(int receiveChunkSize) {
+		if (receiveChunkSize < 1)
+			throw new IllegalArgumentException("chunk size must be positive");
+		mReceiveChunkSize = receiveChunkSize;
+	}
+
+	public int getReceiveChunkSize() {
+		return mReceiveChunkSize;
+	}
+
+	/**
+	 * Sets the factory that creates the reader thread, e.g. one of virtual
+	 * threads (Thread.ofVirtual().factory()) for gateways with many more
+	 * connections than platform threads can serve. Takes effect with the
+	 * next connection.
+	 * @param threadFactory the factory, or null for a plain thread
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		mThreadFactory = threadFactory;
+	}
+
+	/**
+	 * Records every byte read from and written to the transport. The
+	 * recorder writes to disk on its own thread and is not closed by
+	 * this connection.
+	 * @param recorder the recorder, or null to stop recording
+	 */
+	public void setCaptureRecorder(CaptureRecorder recorder) {
+		mCaptureRecorder = recorder;
+	}
+
+	/**
+	 * Lets connect() start a new reader once the given one is done.
+	 */
+	private synchronized void readerDone(Reader reader) {
+		if (mReader == reader)
+			mReader = null;
+	}
+
+	/**
+	 * Ends the reader's connection unless it has been closed, so that
+	 * close() and the reader never both report the end.
+	 * @return false if the reader has been closed and must not report anything
+	 */
+	private synchronized boolean readerEnding(Reader reader) {
+		if (reader.mmClosed)
+			return false;
+		mState = State.Disconnected;
+		readerDone(reader);
+		return true;
+	}
+
+	/**
+	 * Connects the transport, retrying as configured, and then decodes
+	 * whatever is read from it until the connection is closed or lost.
+	 */
+	private class Reader implements Runnable {
+		/** set by close(); the reader then leaves the transport alone and reports nothing */
+		volatile boolean mmClosed = false;
+		Thread mmThread;
+
+		public void run() {
+			try {
+				read();
+			} finally {
+				readerDone(this);
+			}
+		}
+
+		private void read() {
+			if (!connectTransport())
+				return;
+			mFramer.reset();
+			final boolean closed;
+			synchronized (TransportPacketConnection.this) {
+				/* close() cannot slip in between the check and the state change */
+				closed = mmClosed;
+				if (!closed)
+					mState = State.Ready;
+			}
+			if (closed) {
+				/* close() may have come before the transport was open */
+				try {
+					mTransport.close();
+				} catch (IOException ignored) {}
+				return;
+			}
+			mConnHandler.connected();
+
+			final byte[] buffer = new byte[mReceiveChunkSize];
+			/* closed from a callback on this thread, maybe followed by connect() */
+			while (!mmClosed) {
+				try {
+					final int reading = mTransport.read(buffer, 0, buffer.length);
+					if (reading < 0)
+						throw new IOException("end of stream reached");
+					mReceiveTime = System.currentTimeMillis();
+					mReceiveMillis = System.nanoTime() / 1000000;
+					final CaptureRecorder recorder = mCaptureRecorder;
+					if (recorder != null)
+						recorder.record(CaptureFormat.DIR_IN, buffer, 0, reading);
+					mFramer.decode(buffer, 0, reading, TransportPacketConnection.this);
+				} catch (IOException e) {
+					mFramer.reset();
+					if (readerEnding(this)) {
+						try {
+							mTransport.close();
+						} catch (IOException ignored) {}
+						mConnHandler.connectionLost(e.getLocalizedMessage());
+					}
+					break;
+				}
+			}
+		}
+
+		/**
+		 * @return true if connected, otherwise connectFailed() has been called
+		 */
+		private boolean connectTransport() {
+			int failures = 0;
+			String message = "";
+			while (!mmClosed) {
+				try {
+					mTransport.connect();
+					return true;
+				} catch (IOException e) {
+					message = "connect() failed: " + e.getLocalizedMessage();
+					failures++;
+					mConnHandler.connectAttemptFailed(message);
+					if ((mMaxContiguousConnectionFailures != -1) && (failures >= mMaxContiguousConnectionFailures))
+						break;
+					try {
+						Thread.sleep(mConnectionAttemptInterval);
+					} catch (InterruptedException ignored) {
+						break;
+					}
+				}
+			}
+			if (readerEnding(this))
+				mConnHandler.connectFailed(message);
+			return false;
+		}
+	}
+}